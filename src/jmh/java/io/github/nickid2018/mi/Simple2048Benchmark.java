@@ -0,0 +1,119 @@
+package io.github.nickid2018.mi;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Simple2048Benchmark {
+
+    // Every benchmark restores the next prepared board first, so restore() is the baseline to subtract
+    // Boards are filled with the same seed for a given size and density, each cell holds a tile
+    // with probability density, tiles are 2 to 1024
+    // Packed2048 runs on the same boards as Simple2048 to compare the two engines for sizes above 4
+    private static final int BOARDS = 1024;
+
+    @Param({"3", "4", "5", "6", "7", "8"})
+    public int size;
+
+    @Param({"0.25", "0.5", "0.75", "1.0"})
+    public double density;
+
+    @Param({"simple", "packed"})
+    public String engine;
+
+    private Game2048 game;
+    private long[] boards;
+    private int snapshotSize;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SplittableRandom random = new SplittableRandom(size * 31L + Double.hashCode(density));
+        game = switch (engine) {
+            case "simple" -> new Simple2048(size, random.split());
+            case "packed" -> new Packed2048(size, random.split());
+            default -> throw new IllegalArgumentException("Unknown engine " + engine);
+        };
+        snapshotSize = game.snapshotSize();
+        boards = new long[BOARDS * snapshotSize];
+        for (int i = 0; i < BOARDS; i++) {
+            for (int row = 0; row < size; row++)
+                for (int column = 0; column < size; column++)
+                    game.set(row, column, random.nextDouble() < density ? 1L << (1 + random.nextInt(10)) : 0);
+            game.validate();
+            game.saveTo(boards, i * snapshotSize);
+        }
+    }
+
+    private void nextBoard() {
+        game.restoreFrom(boards, next * snapshotSize);
+        next = (next + 1) & (BOARDS - 1);
+    }
+
+    @Benchmark
+    public void restore() {
+        nextBoard();
+    }
+
+    @Benchmark
+    public boolean doMoveUp() {
+        nextBoard();
+        return game.doMove(MoveDirection.UP);
+    }
+
+    @Benchmark
+    public boolean doMoveLeft() {
+        nextBoard();
+        return game.doMove(MoveDirection.LEFT);
+    }
+
+    @Benchmark
+    public boolean doMoveDown() {
+        nextBoard();
+        return game.doMove(MoveDirection.DOWN);
+    }
+
+    @Benchmark
+    public boolean doMoveRight() {
+        nextBoard();
+        return game.doMove(MoveDirection.RIGHT);
+    }
+
+    @Benchmark
+    public Game2048 copy() {
+        nextBoard();
+        return game.copy();
+    }
+
+    @Benchmark
+    public boolean checkContinue() {
+        // restoreFrom drops the cached legal moves, so this always scans the board
+        nextBoard();
+        return game.checkContinue();
+    }
+
+    @Benchmark
+    public Game2048 rotateRight() {
+        nextBoard();
+        game.rotateRight();
+        return game;
+    }
+
+    @Benchmark
+    public int spawn() {
+        // Full boards have nowhere to spawn and measure only the early return
+        nextBoard();
+        if (game instanceof Simple2048 simple)
+            simple.spawnRandomValue();
+        else
+            ((Packed2048) game).spawnRandomValue();
+        return game.getSpareCount();
+    }
+}
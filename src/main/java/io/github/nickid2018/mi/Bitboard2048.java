@@ -0,0 +1,526 @@
+package io.github.nickid2018.mi;
+
+import it.unimi.dsi.fastutil.longs.LongList;
+
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
+
+public class Bitboard2048 implements Game2048 {
+
+    // One nibble per cell, cell (row, column) at bits (row * 4 + column) * 4
+    // Each nibble holds the exponent of the tile, 0 means empty
+    public static final int SIZE = 4;
+    public static final int MAX_EXPONENT = 15;
+
+    private static final long NIBBLE_LOW_BITS = 0x1111111111111111L;
+    private static final long HORIZONTAL_PAIRS = 0x0FFF0FFF0FFF0FFFL;
+    private static final long VERTICAL_PAIRS = 0x0000FFFFFFFFFFFFL;
+    private static final long SPAWN_FOUR_THRESHOLD = (long) (0.05 * (1 << 24));
+
+    private long board;
+    private RandomGenerator random;
+    // Copies take their randoms from this seed and a counter instead of drawing from random
+    private final long copySeed;
+    private long copies;
+    private long maxValue;
+    private long score;
+    // legalMoves of legalBoard, a board of only 32768 tiles has none so it is a valid start
+    private long legalBoard = -1;
+    private int legalMoves;
+    private MoveEventListener moveListener;
+    private StayEventListener stayListener;
+    private SpawnEventListener spawnListener;
+    private MoveRecordListener moveRecordListener;
+    private MoveRecord record;
+    private StepEventListener stepListener;
+    // The tile placed by the last spawn, for the step listener
+    private int spawnSlot;
+    private long spawnValue;
+
+    public Bitboard2048() {
+        this(new SplittableRandom());
+    }
+
+    public Bitboard2048(long seed) {
+        // The same seed and the same moves always replay the same game
+        this(new SplittableRandom(seed), seed);
+    }
+
+    public Bitboard2048(RandomGenerator random) {
+        this(random, random.nextLong());
+    }
+
+    private Bitboard2048(RandomGenerator random, long copySeed) {
+        this.random = random;
+        this.copySeed = copySeed;
+        spawnRandomValue();
+        spawnRandomValue();
+    }
+
+    private Bitboard2048(RandomGenerator random, long copySeed, long board, long maxValue, long score) {
+        this.random = random;
+        this.copySeed = copySeed;
+        this.board = board;
+        this.maxValue = maxValue;
+        this.score = score;
+    }
+
+    @Override
+    public MoveEventListener getMoveListener() {
+        return moveListener;
+    }
+
+    @Override
+    public void setMoveListener(MoveEventListener moveListener) {
+        this.moveListener = moveListener;
+    }
+
+    @Override
+    public StayEventListener getStayListener() {
+        return stayListener;
+    }
+
+    @Override
+    public void setStayListener(StayEventListener stayListener) {
+        this.stayListener = stayListener;
+    }
+
+    @Override
+    public SpawnEventListener getSpawnListener() {
+        return spawnListener;
+    }
+
+    @Override
+    public void setSpawnListener(SpawnEventListener spawnListener) {
+        this.spawnListener = spawnListener;
+    }
+
+    @Override
+    public MoveRecordListener getMoveRecordListener() {
+        return moveRecordListener;
+    }
+
+    @Override
+    public void setMoveRecordListener(MoveRecordListener moveRecordListener) {
+        this.moveRecordListener = moveRecordListener;
+        record = moveRecordListener == null ? null : new MoveRecord(SIZE * SIZE);
+    }
+
+    @Override
+    public StepEventListener getStepListener() {
+        return stepListener;
+    }
+
+    @Override
+    public void setStepListener(StepEventListener stepListener) {
+        this.stepListener = stepListener;
+    }
+
+    @Override
+    public RandomGenerator getRandom() {
+        return random;
+    }
+
+    @Override
+    public void setRandom(RandomGenerator random) {
+        this.random = random;
+    }
+
+    @Override
+    public void reset() {
+        board = 0;
+        score = 0;
+        maxValue = 0;
+        spawnRandomValue();
+        spawnRandomValue();
+    }
+
+    public long getBoard() {
+        return board;
+    }
+
+    public void setBoard(long board) {
+        this.board = board;
+    }
+
+    @Override
+    public long getMaxValue() {
+        return maxValue;
+    }
+
+    @Override
+    public long getScore() {
+        return score;
+    }
+
+    @Override
+    public void setScore(long score) {
+        this.score = score;
+    }
+
+    @Override
+    public boolean doMove(MoveDirection direction) {
+        return doMove(direction, null);
+    }
+
+    @Override
+    public boolean doMove(MoveDirection direction, LongList merges) {
+        if (record != null)
+            record.clear(direction);
+        boolean success = internalMove(direction, merges);
+        if (success) {
+            // If moved successfully, spawn new value
+            spawnRandomValue();
+            if (moveRecordListener != null)
+                moveRecordListener.moved(record);
+            if (stepListener != null)
+                stepListener.step(direction, spawnSlot, spawnValue);
+        }
+        return success;
+    }
+
+    @Override
+    public int fromLineToSlot(int line, int index, MoveDirection direction) {
+        return switch (direction) {
+            case UP -> index * SIZE + line;
+            case DOWN -> (SIZE - 1 - index) * SIZE + line;
+            case LEFT -> line * SIZE + index;
+            case RIGHT -> (line + 1) * SIZE - 1 - index;
+        };
+    }
+
+    public boolean internalMove(MoveDirection direction, LongList merges) {
+        // Columns are handled as rows of the transposed board
+        boolean vertical = direction == MoveDirection.UP || direction == MoveDirection.DOWN;
+        boolean reversed = direction == MoveDirection.DOWN || direction == MoveDirection.RIGHT;
+        long source = vertical ? transpose(board) : board;
+        long result = moveListener == null && stayListener == null && record == null ?
+                lookupMove(source, reversed, merges) :
+                calculateMove(source, direction, reversed, merges);
+        if (result == source)
+            return false;
+        board = vertical ? transpose(result) : result;
+        return true;
+    }
+
+    public static long move(long board, MoveDirection direction) {
+        // The board after sliding, without score or spawn
+        boolean vertical = direction == MoveDirection.UP || direction == MoveDirection.DOWN;
+        boolean reversed = direction == MoveDirection.DOWN || direction == MoveDirection.RIGHT;
+        long source = vertical ? transpose(board) : board;
+        long result = 0;
+        for (int line = 0; line < 64; line += 16) {
+            long entry = RowTransitionTable.entry((int) (source >>> line) & 0xFFFF);
+            result |= (long) (reversed ? RowTransitionTable.right(entry) : RowTransitionTable.left(entry)) << line;
+        }
+        return vertical ? transpose(result) : result;
+    }
+
+    private long lookupMove(long source, boolean reversed, LongList merges) {
+        long result = 0;
+        int mergedScore = 0;
+        int maxMerged = 0;
+        for (int line = 0; line < SIZE; line++) {
+            long entry = RowTransitionTable.entry((int) (source >>> (line * 16)) & 0xFFFF);
+            int moved = reversed ? RowTransitionTable.right(entry) : RowTransitionTable.left(entry);
+            result |= (long) moved << (line * 16);
+            mergedScore += RowTransitionTable.score(entry);
+            maxMerged = Math.max(maxMerged, RowTransitionTable.maxMergedExponent(entry));
+            if (merges != null) {
+                // Merges of a reversed line come out from the right end first
+                int count = RowTransitionTable.mergeCount(entry);
+                for (int i = 0; i < count; i++)
+                    merges.add(1L << RowTransitionTable.mergedExponent(entry, reversed ? count - 1 - i : i));
+            }
+        }
+        score += mergedScore;
+        if (maxMerged != 0 && 1L << maxMerged > maxValue)
+            maxValue = 1L << maxMerged;
+        return result;
+    }
+
+    private long calculateMove(long source, MoveDirection direction, boolean reversed, LongList merges) {
+        long result = 0;
+        for (int line = 0; line < SIZE; line++) {
+            int row = (int) (source >>> (line * 16)) & 0xFFFF;
+            int moved = reversed ?
+                    reverseRow(moveLine(line, reverseRow(row), direction, merges)) :
+                    moveLine(line, row, direction, merges);
+            result |= (long) moved << (line * 16);
+        }
+        return result;
+    }
+
+    private int moveLine(int line, int row, MoveDirection direction, LongList merges) {
+        // Tiles move towards the lowest nibble, the same as the stream order of Simple2048
+        int out = 0;
+        int nowPosition = 0;
+        int lastIndex = 0;
+        int last = 0;
+        boolean moved = false;
+        for (int index = 0; index < SIZE; index++) {
+            int value = (row >>> (index * 4)) & 0xF;
+            if (last != 0 && last == value && last != MAX_EXPONENT) {
+                // The exponent can't grow beyond a nibble, so two tiles of the largest value never merge
+                int shift = (nowPosition - 1) * 4;
+                out = (out & ~(0xF << shift)) | ((value + 1) << shift);
+                long resultValue = 1L << (value + 1);
+                score += resultValue;
+                if (merges != null)
+                    merges.add(resultValue);
+                if (resultValue > maxValue)
+                    maxValue = resultValue;
+                if (moveListener != null) {
+                    moveListener.move(line, lastIndex, nowPosition - 1, direction, 1L << value, resultValue);
+                    moveListener.move(line, index, nowPosition - 1, direction, 1L << value, resultValue);
+                }
+                if (record != null)
+                    record.merge(fromLineToSlot(line, index, direction), resultValue);
+                last = 0;
+                moved = true;
+            } else if (value != 0) {
+                last = value;
+                out |= value << (nowPosition * 4);
+                if (moved && moveListener != null)
+                    moveListener.move(line, index, nowPosition, direction, 1L << value, 1L << value);
+                if (!moved && stayListener != null)
+                    stayListener.stay(line, index, direction);
+                if (record != null)
+                    record.add(fromLineToSlot(line, index, direction), fromLineToSlot(line, nowPosition, direction), 1L << value);
+                lastIndex = index;
+                nowPosition++;
+            } else
+                moved = true;
+        }
+        return out;
+    }
+
+    @Override
+    public int legalMoves() {
+        if (legalBoard != board) {
+            legalMoves = legalMoves(board);
+            legalBoard = board;
+        }
+        return legalMoves;
+    }
+
+    public static int legalMoves(long board) {
+        // A line moves towards an end when an empty cell is next to a tile on that side
+        // or when two neighbours can merge, which allows moving both ways
+        long empty = zeroMask(board);
+        long filled = ~empty & NIBBLE_LOW_BITS;
+        long mergeable = filled & ~fullMask(board);
+        long horizontal = zeroMask(board ^ (board >>> 4)) & HORIZONTAL_PAIRS & mergeable;
+        long vertical = zeroMask(board ^ (board >>> 16)) & VERTICAL_PAIRS & mergeable;
+        int legal = 0;
+        if ((horizontal | (empty & (filled >>> 4) & HORIZONTAL_PAIRS)) != 0)
+            legal |= MoveDirection.LEFT.mask();
+        if ((horizontal | (filled & (empty >>> 4) & HORIZONTAL_PAIRS)) != 0)
+            legal |= MoveDirection.RIGHT.mask();
+        if ((vertical | (empty & (filled >>> 16) & VERTICAL_PAIRS)) != 0)
+            legal |= MoveDirection.UP.mask();
+        if ((vertical | (filled & (empty >>> 16) & VERTICAL_PAIRS)) != 0)
+            legal |= MoveDirection.DOWN.mask();
+        return legal;
+    }
+
+    public static boolean canContinue(long board) {
+        if (emptyMask(board) != 0)
+            return true;
+        // A zero nibble in the difference marks two equal neighbours
+        long blocked = ~fullMask(board);
+        long horizontal = zeroMask(board ^ (board >>> 4)) & HORIZONTAL_PAIRS & blocked;
+        long vertical = zeroMask(board ^ (board >>> 16)) & VERTICAL_PAIRS & blocked;
+        // When checked the table has neither spare area nor merge chance, the game is over
+        return (horizontal | vertical) != 0;
+    }
+
+    private void spawnRandomValue() {
+        long spawned = spawn(board, random) ^ board;
+        if (spawned == 0)
+            // It won't be invoked
+            return;
+        board |= spawned;
+        int at = Long.numberOfTrailingZeros(spawned) >>> 2;
+        long value = 1L << (spawned >>> (at * 4));
+        if (value > maxValue)
+            maxValue = value;
+        if (spawnListener != null)
+            spawnListener.spawn(at / SIZE, at % SIZE, value);
+        spawnSlot = at;
+        spawnValue = value;
+        if (record != null)
+            record.spawn(at, value);
+    }
+
+    public static long spawn(long board, RandomGenerator random) {
+        long empty = emptyMask(board);
+        int spareCount = Long.bitCount(empty);
+        if (spareCount == 0)
+            return board;
+        // One draw for both choices: the high half picks the position, the low 24 bits the value
+        long bits = random.nextLong();
+        int at = Bits.select(empty, (int) (((bits >>> 32) * spareCount) >>> 32)) >>> 2;  // Select random position
+        long exponent = (bits & 0xFFFFFF) < SPAWN_FOUR_THRESHOLD ? 2 : 1;  // 95% spawns 2, 5% spawns 4
+        return board | exponent << (at * 4);
+    }
+
+    @Override
+    public void set(int row, int column, long value) {
+        int shift = (row * SIZE + column) * 4;
+        long exponent = value == 0 ? 0 : Long.numberOfTrailingZeros(value);
+        board = (board & ~(0xFL << shift)) | (exponent << shift);
+    }
+
+    @Override
+    public void validate() {
+        for (int i = 0; i < SIZE * SIZE; i++)
+            maxValue = Math.max(maxValue, get(i / SIZE, i % SIZE));
+    }
+
+    @Override
+    public long get(int row, int column) {
+        int exponent = (int) (board >>> ((row * SIZE + column) * 4)) & 0xF;
+        return exponent == 0 ? 0 : 1L << exponent;
+    }
+
+    @Override
+    public int size() {
+        return SIZE;
+    }
+
+    @Override
+    public int getSpareCount() {
+        return Long.bitCount(emptyMask(board));
+    }
+
+    @Override
+    public Bitboard2048 copy() {
+        return copy(new SplittableRandom(Game2048.mix(copySeed, ++copies)));
+    }
+
+    @Override
+    public Bitboard2048 copy(RandomGenerator random) {
+        return new Bitboard2048(random, Game2048.mix(copySeed, ++copies), board, maxValue, score);
+    }
+
+    @Override
+    public int snapshotSize() {
+        return 3;
+    }
+
+    @Override
+    public void saveTo(long[] buffer, int offset) {
+        buffer[offset] = score;
+        buffer[offset + 1] = maxValue;
+        buffer[offset + 2] = board;
+    }
+
+    @Override
+    public void restoreFrom(long[] buffer, int offset) {
+        score = buffer[offset];
+        maxValue = buffer[offset + 1];
+        board = buffer[offset + 2];
+    }
+
+    @Override
+    public void transform(Symmetry symmetry) {
+        board = transform(board, symmetry);
+    }
+
+    public long canonical() {
+        return canonical(board);
+    }
+
+    public static long boardOf(Game2048 game) {
+        // Packs any 4x4 game, so that the static helpers here can search it
+        if (game instanceof Bitboard2048 bitboard)
+            return bitboard.board;
+        if (game.size() != SIZE)
+            throw new IllegalArgumentException("Only 4x4 games can be packed");
+        long board = 0;
+        for (int i = 0; i < SIZE * SIZE; i++) {
+            long value = game.get(i / SIZE, i % SIZE);
+            if (value == 0)
+                continue;
+            long exponent = Long.numberOfTrailingZeros(value);
+            if (exponent > MAX_EXPONENT)
+                throw new IllegalArgumentException("Tile " + value + " doesn't fit in a nibble");
+            board |= exponent << (i * 4);
+        }
+        return board;
+    }
+
+    public static long transform(long board, Symmetry symmetry) {
+        if (symmetry.isTranspose())
+            board = transpose(board);
+        if (symmetry.isFlipHorizontal())
+            board = flipHorizontal(board);
+        if (symmetry.isFlipVertical())
+            board = flipVertical(board);
+        return board;
+    }
+
+    public static long canonical(long board) {
+        // Smallest of the eight symmetric boards as unsigned, equal for every board in the same class
+        long transposed = transpose(board);
+        long vertical = flipVertical(board);
+        long transposedVertical = flipVertical(transposed);
+        long min = minUnsigned(board, flipHorizontal(board));
+        min = minUnsigned(min, minUnsigned(vertical, flipHorizontal(vertical)));
+        min = minUnsigned(min, minUnsigned(transposed, flipHorizontal(transposed)));
+        return minUnsigned(min, minUnsigned(transposedVertical, flipHorizontal(transposedVertical)));
+    }
+
+    public static Symmetry canonicalSymmetry(long board) {
+        // The symmetry that turns the board into canonical(board)
+        long canonical = canonical(board);
+        for (int i = 0; ; i++)
+            if (transform(board, Symmetry.of(i)) == canonical)
+                return Symmetry.of(i);
+    }
+
+    private static long minUnsigned(long a, long b) {
+        return Long.compareUnsigned(a, b) <= 0 ? a : b;
+    }
+
+    public static long transpose(long board) {
+        long a1 = board & 0xF0F00F0FF0F00F0FL;
+        long a2 = board & 0x0000F0F00000F0F0L;
+        long a3 = board & 0x0F0F00000F0F0000L;
+        long a = a1 | (a2 << 12) | (a3 >>> 12);
+        long b1 = a & 0xFF00FF0000FF00FFL;
+        long b2 = a & 0x00FF00FF00000000L;
+        long b3 = a & 0x00000000FF00FF00L;
+        return b1 | (b2 >>> 24) | (b3 << 24);
+    }
+
+    public static long flipHorizontal(long board) {
+        board = ((board & 0x0F0F0F0F0F0F0F0FL) << 4) | ((board >>> 4) & 0x0F0F0F0F0F0F0F0FL);
+        return ((board & 0x00FF00FF00FF00FFL) << 8) | ((board >>> 8) & 0x00FF00FF00FF00FFL);
+    }
+
+    public static long flipVertical(long board) {
+        board = (board << 32) | (board >>> 32);
+        return ((board & 0x0000FFFF0000FFFFL) << 16) | ((board >>> 16) & 0x0000FFFF0000FFFFL);
+    }
+
+    public static int reverseRow(int row) {
+        return ((row & 0xF) << 12) | ((row & 0xF0) << 4) | ((row >>> 4) & 0xF0) | (row >>> 12);
+    }
+
+    public static long emptyMask(long board) {
+        return zeroMask(board);
+    }
+
+    private static long zeroMask(long value) {
+        // Lowest bit of each nibble is set when the whole nibble is zero
+        value |= value >>> 1;
+        value |= value >>> 2;
+        return ~value & NIBBLE_LOW_BITS;
+    }
+
+    private static long fullMask(long value) {
+        return value & (value >>> 1) & (value >>> 2) & (value >>> 3) & NIBBLE_LOW_BITS;
+    }
+}
@@ -0,0 +1,32 @@
+package io.github.nickid2018.mi;
+
+public final class Bits {
+
+    private static final long ONES_STEP_8 = 0x0101010101010101L;
+    private static final long MSBS_STEP_8 = 0x8080808080808080L;
+
+    // Position of the r-th set bit of a byte, indexed by byte | r << 8
+    private static final byte[] SELECT_IN_BYTE = new byte[256 * 8];
+
+    static {
+        for (int value = 0; value < 256; value++)
+            for (int rank = 0, bit = 0; bit < 8; bit++)
+                if ((value & (1 << bit)) != 0)
+                    SELECT_IN_BYTE[value | rank++ << 8] = (byte) bit;
+    }
+
+    private Bits() {
+    }
+
+    public static int select(long value, int rank) {
+        // Broadword select: locate the byte holding the bit with byte-wise prefix counts,
+        // then finish inside that byte with a table lookup
+        long counts = value - ((value >>> 1) & 0x5555555555555555L);
+        counts = (counts & 0x3333333333333333L) + ((counts >>> 2) & 0x3333333333333333L);
+        counts = ((counts + (counts >>> 4)) & 0x0F0F0F0F0F0F0F0FL) * ONES_STEP_8;
+        long before = ((rank * ONES_STEP_8 | MSBS_STEP_8) - counts) & MSBS_STEP_8;
+        int place = Long.bitCount(before) * 8;
+        int byteRank = rank - (int) (((counts << 8) >>> place) & 0xFF);
+        return place + SELECT_IN_BYTE[(int) ((value >>> place) & 0xFF) | byteRank << 8];
+    }
+}
@@ -0,0 +1,252 @@
+package io.github.nickid2018.mi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class ExpectimaxAI implements Game2048AI {
+
+    // Searches 4x4 games packed as in Bitboard2048, any Game2048 of that size is accepted
+    // Chance nodes whose probability drops below the threshold are scored by the heuristic instead
+    public static final float PROBABILITY_THRESHOLD = 0.0001f;
+    public static final float SPAWN_TWO = 0.95f;
+
+    private static final float LOST_PENALTY = 200000;
+    private static final float MONOTONICITY_POWER = 4;
+    private static final float MONOTONICITY_WEIGHT = 47;
+    private static final float SUM_POWER = 3.5f;
+    private static final float SUM_WEIGHT = 11;
+    private static final float MERGES_WEIGHT = 700;
+    private static final float EMPTY_WEIGHT = 270;
+    private static final int DEFAULT_TABLE_BITS = 20;
+
+    // Heuristic of every packed row, a board is scored by its rows and its columns
+    private static final float[] HEURISTIC = new float[RowTransitionTable.ROW_COUNT];
+
+    static {
+        for (int row = 0; row < RowTransitionTable.ROW_COUNT; row++)
+            HEURISTIC[row] = computeHeuristic(row);
+    }
+
+    private final ForkJoinPool pool;
+    private final long budgetNanos;
+    private final int maxDepth;
+    // Lock-free transposition table, slot 2i holds board ^ data and slot 2i + 1 holds data,
+    // so a pair torn by another thread fails the check and is treated as a miss
+    // data is the value as float bits in the low half and the searched depth above it
+    private final AtomicLongArray table;
+    private final int tableMask;
+
+    public ExpectimaxAI() {
+        this(ForkJoinPool.commonPool(), 100, 8);
+    }
+
+    public ExpectimaxAI(ForkJoinPool pool, long budgetMillis, int maxDepth) {
+        this(pool, budgetMillis, maxDepth, DEFAULT_TABLE_BITS);
+    }
+
+    public ExpectimaxAI(ForkJoinPool pool, long budgetMillis, int maxDepth, int tableBits) {
+        if (maxDepth < 1 || tableBits < 1 || tableBits > 28)
+            throw new IllegalArgumentException();
+        this.pool = pool;
+        this.budgetNanos = budgetMillis * 1_000_000;
+        this.maxDepth = maxDepth;
+        table = new AtomicLongArray(2 << tableBits);
+        tableMask = (1 << tableBits) - 1;
+    }
+
+    @Override
+    public MoveDirection[] getMoveLow(Game2048 game) {
+        return Game2048AI.orderByValue(evaluate(Bitboard2048.boardOf(game)));
+    }
+
+    public float[] evaluate(long board) {
+        // Iterative deepening: each depth reuses the table filled by the previous one,
+        // a depth that runs out of time is dropped and the last complete one is returned
+        // Illegal moves get negative infinity, depth 1 always completes
+        long deadline = System.nanoTime() + budgetNanos;
+        float[] values = null;
+        for (int depth = 1; depth <= maxDepth; depth++) {
+            Search search = new Search(depth == 1 ? Long.MAX_VALUE : deadline);
+            float[] result = pool.invoke(search.new RootTask(board, depth));
+            if (search.expired)
+                break;
+            values = result;
+            if (System.nanoTime() > deadline)
+                break;
+        }
+        return values;
+    }
+
+    public static float heuristic(long board) {
+        long transposed = Bitboard2048.transpose(board);
+        float value = 0;
+        for (int line = 0; line < 64; line += 16)
+            value += HEURISTIC[(int) (board >>> line) & 0xFFFF] + HEURISTIC[(int) (transposed >>> line) & 0xFFFF];
+        return value;
+    }
+
+    private static float computeHeuristic(int row) {
+        // Rewards empty cells, neighbours ready to merge and rows sorted in one direction,
+        // punishes large tiles so that they are merged early
+        float sum = 0;
+        int empty = 0;
+        int merges = 0;
+        int previous = 0;
+        int counter = 0;
+        for (int index = 0; index < Bitboard2048.SIZE; index++) {
+            int rank = (row >>> (index * 4)) & 0xF;
+            sum += (float) Math.pow(rank, SUM_POWER);
+            if (rank == 0)
+                empty++;
+            else {
+                if (previous == rank)
+                    counter++;
+                else if (counter > 0) {
+                    merges += 1 + counter;
+                    counter = 0;
+                }
+                previous = rank;
+            }
+        }
+        if (counter > 0)
+            merges += 1 + counter;
+        float monotonicityLeft = 0;
+        float monotonicityRight = 0;
+        for (int index = 1; index < Bitboard2048.SIZE; index++) {
+            float last = (float) Math.pow((row >>> ((index - 1) * 4)) & 0xF, MONOTONICITY_POWER);
+            float now = (float) Math.pow((row >>> (index * 4)) & 0xF, MONOTONICITY_POWER);
+            if (last > now)
+                monotonicityLeft += last - now;
+            else
+                monotonicityRight += now - last;
+        }
+        return LOST_PENALTY + EMPTY_WEIGHT * empty + MERGES_WEIGHT * merges
+                - MONOTONICITY_WEIGHT * Math.min(monotonicityLeft, monotonicityRight) - SUM_WEIGHT * sum;
+    }
+
+    private static int hash(long board) {
+        long mixed = board * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ (mixed >>> 32));
+    }
+
+    private final class Search {
+
+        private final long deadline;
+        private volatile boolean expired;
+
+        private Search(long deadline) {
+            this.deadline = deadline;
+        }
+
+        private float maxNode(long board, int depth, float probability) {
+            // A board with no move left is lost and scores 0
+            if (depth >= 2 && System.nanoTime() > deadline)
+                expired = true;
+            if (expired)
+                return 0;
+            float best = 0;
+            for (MoveDirection direction : MoveDirection.values()) {
+                long moved = Bitboard2048.move(board, direction);
+                if (moved != board)
+                    best = Math.max(best, chanceNode(moved, depth - 1, probability));
+            }
+            return best;
+        }
+
+        private float chanceNode(long board, int depth, float probability) {
+            if (depth == 0 || probability < PROBABILITY_THRESHOLD)
+                return heuristic(board);
+            int slot = (hash(board) & tableMask) << 1;
+            long data = table.getOpaque(slot + 1);
+            if ((table.getOpaque(slot) ^ data) == board && (int) (data >>> 32) >= depth)
+                return Float.intBitsToFloat((int) data);
+            long empty = Bitboard2048.emptyMask(board);
+            int count = Long.bitCount(empty);
+            float twoProbability = probability * SPAWN_TWO / count;
+            float fourProbability = probability * (1 - SPAWN_TWO) / count;
+            float sum = 0;
+            for (; empty != 0; empty &= empty - 1) {
+                long tile = empty & -empty;
+                sum += SPAWN_TWO * maxNode(board | tile, depth, twoProbability)
+                        + (1 - SPAWN_TWO) * maxNode(board | tile << 1, depth, fourProbability);
+            }
+            float value = sum / count;
+            if (!expired) {
+                data = (long) depth << 32 | Integer.toUnsignedLong(Float.floatToRawIntBits(value));
+                table.setOpaque(slot + 1, data);
+                table.setOpaque(slot, board ^ data);
+            }
+            return value;
+        }
+
+        @SuppressWarnings("serial")
+        private final class RootTask extends RecursiveTask<float[]> {
+
+            private final long board;
+            private final int depth;
+
+            private RootTask(long board, int depth) {
+                this.board = board;
+                this.depth = depth;
+            }
+
+            @Override
+            protected float[] compute() {
+                // One subtask per move and spawn position keeps every worker busy
+                float[] values = new float[4];
+                List<List<SpawnTask>> tasks = new ArrayList<>();
+                List<SpawnTask> all = new ArrayList<>();
+                for (MoveDirection direction : MoveDirection.values()) {
+                    List<SpawnTask> spawns = new ArrayList<>();
+                    long moved = Bitboard2048.move(board, direction);
+                    long empty = Bitboard2048.emptyMask(moved);
+                    float probability = 1f / Long.bitCount(empty);
+                    if (moved != board)
+                        for (; empty != 0; empty &= empty - 1)
+                            spawns.add(new SpawnTask(moved, empty & -empty, depth, probability));
+                    tasks.add(spawns);
+                    all.addAll(spawns);
+                }
+                ForkJoinTask.invokeAll(all);
+                for (MoveDirection direction : MoveDirection.values()) {
+                    List<SpawnTask> spawns = tasks.get(direction.ordinal());
+                    if (spawns.isEmpty()) {
+                        values[direction.ordinal()] = Float.NEGATIVE_INFINITY;
+                        continue;
+                    }
+                    float sum = 0;
+                    for (SpawnTask spawn : spawns)
+                        sum += spawn.join();
+                    values[direction.ordinal()] = sum / spawns.size();
+                }
+                return values;
+            }
+        }
+
+        @SuppressWarnings("serial")
+        private final class SpawnTask extends RecursiveTask<Float> {
+
+            private final long board;
+            private final long tile;
+            private final int depth;
+            private final float probability;
+
+            private SpawnTask(long board, long tile, int depth, float probability) {
+                this.board = board;
+                this.tile = tile;
+                this.depth = depth;
+                this.probability = probability;
+            }
+
+            @Override
+            protected Float compute() {
+                return SPAWN_TWO * maxNode(board | tile, depth, probability * SPAWN_TWO)
+                        + (1 - SPAWN_TWO) * maxNode(board | tile << 1, depth, probability * (1 - SPAWN_TWO));
+            }
+        }
+    }
+}
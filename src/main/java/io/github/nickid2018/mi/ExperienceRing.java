@@ -0,0 +1,184 @@
+package io.github.nickid2018.mi;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class ExperienceRing implements AutoCloseable {
+
+    // Memory-mapped ring of replay transitions shared by processes on one machine
+    // The header holds the capacity and the head, the number of records ever claimed
+    // A writer claims ticket t by adding one to the head, its record lives at slot t % capacity:
+    // the board packed as in Bitboard2048, four labels, a check of the ticket and the payload, then a sequence
+    // that is -(t + 1) while the record is written and t + 1 once it is complete
+    // A writer takes its slot over from the previous lap only once that record is complete, so two writers
+    // a lap apart never write the same slot at once; a writer whose record a later lap already claimed drops it
+    // Only a stalled writer loses its slot while writing, it stops once it sees that and its stray stores
+    // fail the check of the record that took the slot over
+    // Readers keep their own position and skip records that were overwritten before they got to them
+    public static final int MAGIC = 0x52494E47;
+    public static final int HEADER = 64;
+    public static final int RECORD = 40;
+    public static final int DEFAULT_CAPACITY = 1 << 22;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int HEAD_OFFSET = 16;
+    private static final int CHECK_OFFSET = 24;
+    private static final int SEQUENCE_OFFSET = 32;
+    // A record still unfinished after this long belongs to a writer that died, readers skip it
+    // and the writer of the next lap takes the slot over
+    private static final long STALL_NANOS = 1_000_000_000L;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final long capacity;
+    private final float[] labels = new float[4];
+    private long next;
+    private long stalledSince = -1;
+
+    public ExperienceRing(Path path, int capacity) throws IOException {
+        // Creates the file with the given capacity, or opens it with the capacity it already has
+        if (capacity < 1 || capacity > (Integer.MAX_VALUE - HEADER) / RECORD)
+            throw new IllegalArgumentException("Capacity must be in 1-" + (Integer.MAX_VALUE - HEADER) / RECORD);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            FileLock lock = channel.lock();
+            try {
+                if (channel.size() == 0) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.nativeOrder());
+                    header.putInt(0, MAGIC).putInt(4, RECORD).putLong(CAPACITY_OFFSET, capacity);
+                    channel.write(header, 0);
+                    channel.write(ByteBuffer.allocate(1), HEADER + (long) capacity * RECORD - 1);
+                }
+            } finally {
+                lock.release();
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+            header.order(ByteOrder.nativeOrder());
+            if (header.getInt(0) != MAGIC || header.getInt(4) != RECORD)
+                throw new IOException("Not an experience ring");
+            this.capacity = header.getLong(CAPACITY_OFFSET);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + this.capacity * RECORD);
+            buffer.order(ByteOrder.nativeOrder());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        // Start with the records that are still in the ring
+        next = Math.max(0, head() - this.capacity);
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    public long head() {
+        return (long) LONGS.getAcquire(buffer, HEAD_OFFSET);
+    }
+
+    public void add(long board, float[] labels) {
+        long ticket = (long) LONGS.getAndAdd(buffer, HEAD_OFFSET, 1L);
+        int offset = offset(ticket);
+        if (!claim(offset, ticket))
+            return;
+        // The record must not look complete to a reader before the marker is visible
+        VarHandle.storeStoreFence();
+        long marker = -(ticket + 1);
+        buffer.putLong(offset, board);
+        for (int i = 0; i < 4; i++) {
+            if ((long) LONGS.getOpaque(buffer, offset + SEQUENCE_OFFSET) != marker)
+                return;
+            buffer.putFloat(offset + 8 + i * 4, labels[i]);
+        }
+        buffer.putLong(offset + CHECK_OFFSET, check(ticket, board, labels));
+        // Fails only if a later lap took the slot over, the record is dropped then
+        LONGS.compareAndSet(buffer, offset + SEQUENCE_OFFSET, marker, ticket + 1);
+    }
+
+    private boolean claim(int offset, long ticket) {
+        // Marks the slot as being written for the ticket once the record of the previous lap is complete
+        // Returns false when a later lap has claimed the slot already
+        long previous = ticket < capacity ? 0 : ticket - capacity + 1;
+        long waitingSince = -1;
+        for (int spins = 0; ; spins++) {
+            long sequence = (long) LONGS.compareAndExchange(buffer, offset + SEQUENCE_OFFSET, previous, -(ticket + 1));
+            if (sequence == previous)
+                return true;
+            if (Math.abs(sequence) > ticket + 1)
+                return false;
+            // An earlier lap hasn't finished, its writer may be descheduled so give up the core after a while,
+            // and take over once it has stalled
+            long now = System.nanoTime();
+            if (waitingSince < 0)
+                waitingSince = now;
+            if (now - waitingSince >= STALL_NANOS) {
+                if (LONGS.compareAndSet(buffer, offset + SEQUENCE_OFFSET, sequence, -(ticket + 1)))
+                    return true;
+            } else if (spins < 64)
+                Thread.onSpinWait();
+            else
+                Thread.yield();
+        }
+    }
+
+    public int drainTo(ReplayMemory memory, int max) {
+        // Moves up to max complete records after the last one read into the memory, in ticket order
+        // Stops at a record that is still being written, returns how many were moved
+        long head = head();
+        if (head - next > capacity)
+            next = head - capacity;
+        int count = 0;
+        while (next < head && count < max) {
+            int offset = offset(next);
+            long sequence = (long) LONGS.getAcquire(buffer, offset + SEQUENCE_OFFSET);
+            if (sequence == next + 1) {
+                long board = buffer.getLong(offset);
+                for (int i = 0; i < 4; i++)
+                    labels[i] = buffer.getFloat(offset + 8 + i * 4);
+                long check = buffer.getLong(offset + CHECK_OFFSET);
+                VarHandle.acquireFence();
+                if ((long) LONGS.getOpaque(buffer, offset + SEQUENCE_OFFSET) == next + 1
+                        && check == check(next, board, labels)) {
+                    memory.add(board, labels);
+                    count++;
+                }
+            } else if (Math.abs(sequence) <= next + 1) {
+                // Not finished yet
+                long now = System.nanoTime();
+                if (stalledSince < 0)
+                    stalledSince = now;
+                if (now - stalledSince < STALL_NANOS)
+                    break;
+            }
+            // Read, overwritten by a later lap, or abandoned
+            stalledSince = -1;
+            next++;
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static long check(long ticket, long board, float[] labels) {
+        // A hash that a record mixed from two writers' stores fails
+        long check = Game2048.mix(ticket, board);
+        for (int i = 0; i < 4; i += 2)
+            check = Game2048.mix(check, Integer.toUnsignedLong(Float.floatToRawIntBits(labels[i]))
+                    | (long) Float.floatToRawIntBits(labels[i + 1]) << 32);
+        return check;
+    }
+
+    private int offset(long ticket) {
+        return HEADER + (int) (ticket % capacity) * RECORD;
+    }
+}
@@ -0,0 +1,100 @@
+package io.github.nickid2018.mi;
+
+import it.unimi.dsi.fastutil.longs.LongList;
+
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
+
+public interface Game2048 {
+
+    MoveEventListener getMoveListener();
+
+    void setMoveListener(MoveEventListener moveListener);
+
+    StayEventListener getStayListener();
+
+    void setStayListener(StayEventListener stayListener);
+
+    SpawnEventListener getSpawnListener();
+
+    void setSpawnListener(SpawnEventListener spawnListener);
+
+    MoveRecordListener getMoveRecordListener();
+
+    // One reused record per move instead of the per-tile events, null turns it off
+    void setMoveRecordListener(MoveRecordListener moveRecordListener);
+
+    StepEventListener getStepListener();
+
+    // Only the move and its spawn, unlike the record it keeps the engine on its fast move path
+    void setStepListener(StepEventListener stepListener);
+
+    RandomGenerator getRandom();
+
+    void setRandom(RandomGenerator random);
+
+    void reset();
+
+    long getMaxValue();
+
+    long getScore();
+
+    void setScore(long score);
+
+    boolean doMove(MoveDirection direction);
+
+    boolean doMove(MoveDirection direction, LongList merges);
+
+    int fromLineToSlot(int line, int index, MoveDirection direction);
+
+    // One bit per MoveDirection ordinal (see MoveDirection.mask()), set when that move changes the board
+    // Kept until the board changes, so asking again is nearly free
+    int legalMoves();
+
+    default boolean checkContinue() {
+        return legalMoves() != 0;
+    }
+
+    void set(int row, int column, long value);
+
+    void validate();
+
+    long get(int row, int column);
+
+    int size();
+
+    int getSpareCount();
+
+    // A copy with its own random, derived without drawing from this game's stream
+    Game2048 copy();
+
+    // A copy that draws its spawns from the given random
+    Game2048 copy(RandomGenerator random);
+
+    // Number of longs saveTo writes, the state holds the board, the score and the max value
+    int snapshotSize();
+
+    void saveTo(long[] buffer, int offset);
+
+    void restoreFrom(long[] buffer, int offset);
+
+    void transform(Symmetry symmetry);
+
+    default void rotateRight() {
+        transform(Symmetry.ROTATE_RIGHT);
+    }
+
+    static RandomGenerator split(RandomGenerator random) {
+        // A new independent stream for another game or thread, derived from the given one
+        return random instanceof RandomGenerator.SplittableGenerator splittable ?
+                splittable.split() : new SplittableRandom(random.nextLong());
+    }
+
+    static long mix(long seed, long index) {
+        // The index-th seed derived from the given one, through the SplitMix64 finalizer
+        long z = seed + index * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,23 @@
+package io.github.nickid2018.mi;
+
+public interface Game2048AI {
+
+    // All four directions from the worst to the best, callers try them from the end
+    MoveDirection[] getMoveLow(Game2048 game);
+
+    static MoveDirection[] orderByValue(float[] values) {
+        // values is indexed by MoveDirection ordinal and isn't modified
+        MoveDirection[] directions = MoveDirection.values();
+        float[] sorted = values.clone();
+        for (int i = 1; i < directions.length; i++)
+            for (int j = i; j > 0 && sorted[j - 1] > sorted[j]; j--) {
+                float value = sorted[j];
+                sorted[j] = sorted[j - 1];
+                sorted[j - 1] = value;
+                MoveDirection direction = directions[j];
+                directions[j] = directions[j - 1];
+                directions[j - 1] = direction;
+            }
+        return directions;
+    }
+}
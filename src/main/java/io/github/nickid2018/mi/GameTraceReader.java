@@ -0,0 +1,163 @@
+package io.github.nickid2018.mi;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class GameTraceReader implements AutoCloseable {
+
+    // Memory-mapped view of a file written by GameTraceRecorder
+    // Steps are addressed by slot, slot s lives in block s / stepsPerBlock, padding slots have no move
+    // A board is rebuilt from the checkpoint of its block and the recorded moves and spawns,
+    // so reading never needs a random generator or a game object
+    private static final int SEGMENT_BITS = 30;
+
+    private final FileChannel channel;
+    private final int stepsPerBlock;
+    private final int blockSize;
+    private final int blocksPerSegment;
+    private final long blockCount;
+    private final MappedByteBuffer[] segments;
+
+    public GameTraceReader(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, GameTraceRecorder.HEADER);
+            if (header.getInt(0) != GameTraceRecorder.MAGIC)
+                throw new IOException("Not a game trace");
+            stepsPerBlock = header.getInt(4);
+            blockSize = GameTraceRecorder.CHECKPOINT + stepsPerBlock * 2;
+            blockCount = (channel.size() - GameTraceRecorder.HEADER) / blockSize;
+            // Segments hold whole blocks so that no block crosses a mapping
+            blocksPerSegment = (1 << SEGMENT_BITS) / blockSize;
+            segments = new MappedByteBuffer[(int) ((blockCount + blocksPerSegment - 1) / blocksPerSegment)];
+            for (int i = 0; i < segments.length; i++) {
+                long first = (long) i * blocksPerSegment;
+                long blocks = Math.min(blocksPerSegment, blockCount - first);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        GameTraceRecorder.HEADER + first * blockSize, blocks * blockSize);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public long slotCount() {
+        return blockCount * stepsPerBlock;
+    }
+
+    public int move(long slot) {
+        // Move ordinal of the step, -1 for padding
+        int move = byteAt(slot, 0);
+        return move == (GameTraceRecorder.PADDING & 0xFF) ? -1 : move;
+    }
+
+    public int spawnSlot(long slot) {
+        return byteAt(slot, 1) & 0xF;
+    }
+
+    public long spawnValue(long slot) {
+        return (byteAt(slot, 1) & GameTraceRecorder.FOUR_BIT) != 0 ? 4 : 2;
+    }
+
+    public long seed(long slot) {
+        long block = slot / stepsPerBlock;
+        return segment(block).getLong(blockOffset(block) + 16);
+    }
+
+    public long gameStep(long slot) {
+        // Index of the step inside its game
+        long block = slot / stepsPerBlock;
+        return segment(block).getInt(blockOffset(block) + 24) + slot % stepsPerBlock;
+    }
+
+    public long board(long slot) {
+        // The board before the step, packed as in Bitboard2048
+        long block = slot / stepsPerBlock;
+        long board = segment(block).getLong(blockOffset(block));
+        for (long at = block * stepsPerBlock; at < slot; at++)
+            board = play(board, at);
+        return board;
+    }
+
+    public long score(long slot) {
+        // The score before the step
+        long block = slot / stepsPerBlock;
+        long board = segment(block).getLong(blockOffset(block));
+        long score = segment(block).getLong(blockOffset(block) + 8);
+        for (long at = block * stepsPerBlock; at < slot; at++) {
+            score += moveScore(board, move(at));
+            board = play(board, at);
+        }
+        return score;
+    }
+
+    public void scan(long from, long to, StepVisitor visitor) {
+        // Visits the steps of slots [from, to) in order, rebuilding each board from the previous one
+        long board = 0;
+        long score = 0;
+        for (long slot = from - from % stepsPerBlock; slot < to; slot++) {
+            if (slot % stepsPerBlock == 0) {
+                long block = slot / stepsPerBlock;
+                board = segment(block).getLong(blockOffset(block));
+                score = segment(block).getLong(blockOffset(block) + 8);
+            }
+            int move = move(slot);
+            if (move < 0)
+                continue;
+            if (slot >= from)
+                visitor.visit(slot, board, MoveDirection.values()[move], score);
+            score += moveScore(board, move);
+            board = play(board, slot);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private long play(long board, long slot) {
+        int move = move(slot);
+        if (move < 0)
+            return board;
+        long moved = Bitboard2048.move(board, MoveDirection.values()[move]);
+        return moved | (long) ((byteAt(slot, 1) & GameTraceRecorder.FOUR_BIT) != 0 ? 2 : 1) << (spawnSlot(slot) * 4);
+    }
+
+    private static long moveScore(long board, int move) {
+        // Both ways along a line merge the same tiles
+        if (move < 0)
+            return 0;
+        long lines = move == MoveDirection.UP.ordinal() || move == MoveDirection.DOWN.ordinal() ?
+                Bitboard2048.transpose(board) : board;
+        long score = 0;
+        for (int line = 0; line < 64; line += 16)
+            score += RowTransitionTable.score(RowTransitionTable.entry((int) (lines >>> line) & 0xFFFF));
+        return score;
+    }
+
+    private int byteAt(long slot, int offset) {
+        long block = slot / stepsPerBlock;
+        int position = blockOffset(block) + GameTraceRecorder.CHECKPOINT + (int) (slot % stepsPerBlock) * 2 + offset;
+        return segment(block).get(position) & 0xFF;
+    }
+
+    private MappedByteBuffer segment(long block) {
+        return segments[(int) (block / blocksPerSegment)];
+    }
+
+    private int blockOffset(long block) {
+        return (int) (block % blocksPerSegment) * blockSize;
+    }
+
+    @FunctionalInterface
+    public interface StepVisitor {
+
+        // The board and the score before the move, the board packed as in Bitboard2048
+        void visit(long slot, long board, MoveDirection move, long score);
+    }
+}
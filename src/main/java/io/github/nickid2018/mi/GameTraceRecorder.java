@@ -0,0 +1,108 @@
+package io.github.nickid2018.mi;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class GameTraceRecorder implements StepEventListener, AutoCloseable {
+
+    // Appends 4x4 games to a trace file: a file header, then fixed size blocks of
+    // a checkpoint (board, score, seed of the game, step of the game) followed by STEPS_PER_BLOCK steps
+    // A step is a move byte (PADDING for unused slots) and a spawn byte (cell | FOUR_BIT for a 4)
+    // Every game starts a new block, blocks are only written whole so the file always ends on one
+    public static final int MAGIC = 0x32303438;
+    public static final int HEADER = 16;
+    public static final int STEPS_PER_BLOCK = 128;
+    public static final int CHECKPOINT = 32;
+    public static final int BLOCK = CHECKPOINT + STEPS_PER_BLOCK * 2;
+    public static final byte PADDING = -1;
+    public static final int FOUR_BIT = 0x10;
+
+    private final FileChannel channel;
+    private final ByteBuffer block = ByteBuffer.allocate(BLOCK);
+    private Game2048 game;
+    private long seed;
+    private int gameStep;
+    private int slot = -1;
+
+    public GameTraceRecorder(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(0, MAGIC).putInt(4, STEPS_PER_BLOCK);
+            while (header.hasRemaining())
+                channel.write(header);
+        }
+    }
+
+    public void startGame(long seed, Game2048 game) {
+        // The game must not have moved since it was created or reset with this seed
+        // The recorder becomes its step listener until the next game or close(), a step listener
+        // leaves the move record free and keeps Bitboard2048 on its lookup table moves
+        if (game.size() != Bitboard2048.SIZE)
+            throw new IllegalArgumentException("Only 4x4 games can be traced");
+        if (this.game != null)
+            this.game.setStepListener(null);
+        flush();
+        this.game = game;
+        this.seed = seed;
+        gameStep = 0;
+        game.setStepListener(this);
+        startBlock();
+    }
+
+    @Override
+    public void step(MoveDirection direction, int spawnSlot, long spawnValue) {
+        block.put(CHECKPOINT + slot * 2, (byte) direction.ordinal());
+        block.put(CHECKPOINT + slot * 2 + 1, (byte) (spawnSlot | (spawnValue == 4 ? FOUR_BIT : 0)));
+        slot++;
+        gameStep++;
+        if (slot == STEPS_PER_BLOCK) {
+            write();
+            startBlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (game != null)
+            game.setStepListener(null);
+        flush();
+        channel.close();
+    }
+
+    private void startBlock() {
+        // The checkpoint is the board before the first step of the block
+        block.clear();
+        block.putLong(0, Bitboard2048.boardOf(game));
+        block.putLong(8, game.getScore());
+        block.putLong(16, seed);
+        block.putInt(24, gameStep);
+        slot = 0;
+    }
+
+    private void flush() {
+        // Writes the open block if it holds a step, the unused slots are padding
+        if (slot <= 0)
+            return;
+        for (int i = slot; i < STEPS_PER_BLOCK; i++) {
+            block.put(CHECKPOINT + i * 2, PADDING);
+            block.put(CHECKPOINT + i * 2 + 1, (byte) 0);
+        }
+        write();
+        slot = -1;
+    }
+
+    private void write() {
+        block.clear();
+        try {
+            while (block.hasRemaining())
+                channel.write(block);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
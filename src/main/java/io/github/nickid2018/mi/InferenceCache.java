@@ -0,0 +1,68 @@
+package io.github.nickid2018.mi;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+
+public class InferenceCache {
+
+    // Bounded LRU map from canonical 4x4 boards, packed as in Bitboard2048, to the values of the four moves
+    // Values are kept in the canonical orientation, get() turns them back to the board asked about
+    private static final MoveDirection[] DIRECTIONS = MoveDirection.values();
+
+    private final Long2ObjectLinkedOpenHashMap<float[]> entries;
+    private final int capacity;
+    private long hits;
+    private long misses;
+
+    public InferenceCache(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException();
+        this.capacity = capacity;
+        entries = new Long2ObjectLinkedOpenHashMap<>(capacity);
+    }
+
+    public float[] get(long canonical, Symmetry symmetry) {
+        // symmetry turns the original board into canonical, null when the board isn't cached
+        float[] values = entries.getAndMoveToLast(canonical);
+        if (values == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return orient(values, symmetry);
+    }
+
+    public static float[] orient(float[] values, Symmetry symmetry) {
+        // Values of the canonical board as values of the board symmetry turned into it
+        float[] oriented = new float[4];
+        for (int i = 0; i < 4; i++)
+            oriented[i] = values[symmetry.apply(DIRECTIONS[i]).ordinal()];
+        return oriented;
+    }
+
+    public void put(long canonical, float[] values) {
+        // values belong to the canonical board
+        if (entries.size() >= capacity && !entries.containsKey(canonical))
+            entries.removeFirst();
+        entries.putAndMoveToLast(canonical, values.clone());
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,137 @@
+package io.github.nickid2018.mi;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.random.RandomGenerator;
+
+public class MonteCarloAI implements Game2048AI {
+
+    // Scores every legal move by the mean score gained in random playouts to the end of the game
+    // Works with any Game2048, each worker replays from a snapshot of the game being evaluated
+    private static final MoveDirection[] DIRECTIONS = MoveDirection.values();
+
+    private final ForkJoinPool pool;
+    private final long budgetNanos;
+    private final int maxPlayouts;
+    private final RandomGenerator random;
+    // One worker per pool thread, kept between calls with its own game and random stream
+    private Playouts[] workers = new Playouts[0];
+    private long[] start = new long[0];
+
+    public MonteCarloAI() {
+        this(ForkJoinPool.commonPool(), 50, Integer.MAX_VALUE, new SplittableRandom());
+    }
+
+    public MonteCarloAI(ForkJoinPool pool, long budgetMillis, int maxPlayouts, long seed) {
+        // With a budget large enough to finish maxPlayouts, the same seed gives the same values
+        this(pool, budgetMillis, maxPlayouts, new SplittableRandom(seed));
+    }
+
+    public MonteCarloAI(ForkJoinPool pool, long budgetMillis, int maxPlayouts, RandomGenerator random) {
+        if (maxPlayouts < 1)
+            throw new IllegalArgumentException();
+        this.pool = pool;
+        this.budgetNanos = budgetMillis * 1_000_000;
+        this.maxPlayouts = maxPlayouts;
+        this.random = random;
+    }
+
+    public synchronized MonteCarloAI split() {
+        // Same pool and budget with its own workers and random stream, so another thread can evaluate alongside
+        return new MonteCarloAI(pool, budgetNanos / 1_000_000, maxPlayouts, Game2048.split(random));
+    }
+
+    @Override
+    public MoveDirection[] getMoveLow(Game2048 game) {
+        return Game2048AI.orderByValue(evaluate(game));
+    }
+
+    public synchronized float[] evaluate(Game2048 game) {
+        // Mean score gained after each move, negative infinity for illegal moves
+        // Every worker plays each legal move at least once, then keeps going until the budget
+        // or its share of maxPlayouts is spent
+        float[] values = new float[4];
+        Arrays.fill(values, Float.NEGATIVE_INFINITY);
+        int legal = game.legalMoves();
+        if (legal == 0)
+            return values;
+        long deadline = System.nanoTime() + budgetNanos;
+        prepare(game);
+        game.saveTo(start, 0);
+        long perRound = (long) workers.length * Integer.bitCount(legal);
+        int rounds = (int) Math.max(1, (maxPlayouts + perRound - 1) / perRound);
+        for (Playouts worker : workers) {
+            worker.reinitialize();
+            worker.legal = legal;
+            worker.rounds = rounds;
+            worker.deadline = deadline;
+            pool.execute(worker);
+        }
+        long[] sums = new long[4];
+        long[] counts = new long[4];
+        for (Playouts worker : workers) {
+            worker.join();
+            for (int i = 0; i < 4; i++) {
+                sums[i] += worker.sums[i];
+                counts[i] += worker.counts[i];
+            }
+        }
+        for (int i = 0; i < 4; i++)
+            if (counts[i] != 0)
+                values[i] = (float) sums[i] / counts[i];
+        return values;
+    }
+
+    private void prepare(Game2048 game) {
+        int parallelism = pool.getParallelism();
+        if (workers.length == parallelism && workers[0].game.getClass() == game.getClass()
+                && workers[0].game.size() == game.size())
+            return;
+        workers = new Playouts[parallelism];
+        for (int i = 0; i < parallelism; i++)
+            workers[i] = new Playouts(game.copy(Game2048.split(random)));
+        start = new long[game.snapshotSize()];
+    }
+
+    @SuppressWarnings("serial")
+    private final class Playouts extends RecursiveAction {
+
+        private final Game2048 game;
+        private final RandomGenerator random;
+        private final long[] sums = new long[4];
+        private final long[] counts = new long[4];
+        private int legal;
+        private int rounds;
+        private long deadline;
+
+        private Playouts(Game2048 game) {
+            this.game = game;
+            random = game.getRandom();
+        }
+
+        @Override
+        protected void compute() {
+            Arrays.fill(sums, 0);
+            Arrays.fill(counts, 0);
+            game.restoreFrom(start, 0);
+            long startScore = game.getScore();
+            for (int round = 0; round < rounds; round++) {
+                for (int moves = legal; moves != 0; moves &= moves - 1) {
+                    int direction = Integer.numberOfTrailingZeros(moves);
+                    game.restoreFrom(start, 0);
+                    game.doMove(DIRECTIONS[direction]);
+                    while (game.checkContinue()) {
+                        int next = game.legalMoves();
+                        game.doMove(DIRECTIONS[Bits.select(next, random.nextInt(Integer.bitCount(next)))]);
+                    }
+                    sums[direction] += game.getScore() - startScore;
+                    counts[direction]++;
+                }
+                if (System.nanoTime() > deadline)
+                    break;
+            }
+        }
+    }
+}
@@ -1,4 +0,0 @@
-package io.github.nickid2018.mi;
-
-public record MoveData(int toSlot, long source, long result) {
-}
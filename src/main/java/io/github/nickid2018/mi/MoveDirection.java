@@ -1,5 +1,10 @@
 package io.github.nickid2018.mi;
 
 public enum MoveDirection {
-    UP, LEFT, DOWN, RIGHT
+    UP, LEFT, DOWN, RIGHT;
+
+    // Bit of this direction in Game2048.legalMoves()
+    public int mask() {
+        return 1 << ordinal();
+    }
 }
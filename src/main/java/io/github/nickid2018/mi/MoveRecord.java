@@ -0,0 +1,89 @@
+package io.github.nickid2018.mi;
+
+public class MoveRecord {
+
+    // Every tile of the board before a move: the slot it left, the slot it ended in, its value before and after
+    // A tile merged into another ends with the merged value, as does the tile it merged into
+    // A game keeps one record and rewrites it on every move, so copy what must outlive the next move
+    private final int[] fromSlots;
+    private final int[] toSlots;
+    private final long[] sources;
+    private final long[] results;
+    private int size;
+    private MoveDirection direction;
+    private int spawnSlot = -1;
+    private long spawnValue;
+
+    public MoveRecord(int capacity) {
+        fromSlots = new int[capacity];
+        toSlots = new int[capacity];
+        sources = new long[capacity];
+        results = new long[capacity];
+    }
+
+    public void clear(MoveDirection direction) {
+        this.direction = direction;
+        size = 0;
+        spawnSlot = -1;
+        spawnValue = 0;
+    }
+
+    public void add(int fromSlot, int toSlot, long value) {
+        fromSlots[size] = fromSlot;
+        toSlots[size] = toSlot;
+        sources[size] = value;
+        results[size] = value;
+        size++;
+    }
+
+    public void merge(int fromSlot, long result) {
+        // The tile at fromSlot merges into the tile added last
+        results[size - 1] = result;
+        fromSlots[size] = fromSlot;
+        toSlots[size] = toSlots[size - 1];
+        sources[size] = sources[size - 1];
+        results[size] = result;
+        size++;
+    }
+
+    public void spawn(int slot, long value) {
+        spawnSlot = slot;
+        spawnValue = value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public MoveDirection getDirection() {
+        return direction;
+    }
+
+    public int getFromSlot(int index) {
+        return fromSlots[index];
+    }
+
+    public int getToSlot(int index) {
+        return toSlots[index];
+    }
+
+    public long getSource(int index) {
+        return sources[index];
+    }
+
+    public long getResult(int index) {
+        return results[index];
+    }
+
+    public boolean isStay(int index) {
+        return fromSlots[index] == toSlots[index] && sources[index] == results[index];
+    }
+
+    public int getSpawnSlot() {
+        return spawnSlot;
+    }
+
+    public long getSpawnValue() {
+        return spawnValue;
+    }
+}
@@ -0,0 +1,8 @@
+package io.github.nickid2018.mi;
+
+@FunctionalInterface
+public interface MoveRecordListener {
+
+    // Called once after every successful doMove, the spawn included
+    void moved(MoveRecord record);
+}
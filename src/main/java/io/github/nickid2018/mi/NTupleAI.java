@@ -0,0 +1,215 @@
+package io.github.nickid2018.mi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
+
+public class NTupleAI implements Game2048AI {
+
+    // Value of a 4x4 afterstate (the board after a move, before the spawn) as a sum of table weights
+    // Each tuple is a list of cells, its table is indexed by their exponents one nibble each,
+    // and all eight symmetric placements of a tuple share the same table
+    public static final int[][] DEFAULT_TUPLES = {
+            {0, 1, 2, 3}, {4, 5, 6, 7},  // Outer and inner row
+            {0, 1, 4, 5}, {1, 2, 5, 6}, {5, 6, 9, 10}  // Corner, edge and center square
+    };
+    public static final int MAX_TUPLE_LENGTH = 6;
+
+    // File layout: magic, tuple count, each tuple as its length and cells, then every weight
+    private static final int MAGIC = 0x4E545550;
+
+    private final int[][] tuples;
+    // Flat weights of all tables, table t starts at bases[t * 8]
+    private final float[] weights;
+    // One entry per symmetric placement: its table start, its cell count and the shifts of its cells
+    private final int[] bases;
+    private final int[] lengths;
+    private final int[] shifts;
+    private float learningRate = 0.0025f;
+
+    public NTupleAI() {
+        this(DEFAULT_TUPLES);
+    }
+
+    public NTupleAI(int[][] tuples) {
+        this.tuples = tuples;
+        int placements = tuples.length * 8;
+        bases = new int[placements];
+        lengths = new int[placements];
+        int totalCells = 0;
+        long totalWeights = 0;
+        for (int[] tuple : tuples) {
+            if (tuple.length == 0 || tuple.length > MAX_TUPLE_LENGTH)
+                throw new IllegalArgumentException("Tuple length must be in 1-" + MAX_TUPLE_LENGTH);
+            totalCells += tuple.length * 8;
+            totalWeights += 1L << (tuple.length * 4);
+        }
+        if (totalWeights > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Tables are too large");
+        weights = new float[(int) totalWeights];
+        shifts = new int[totalCells];
+        int base = 0;
+        int cell = 0;
+        for (int t = 0; t < tuples.length; t++) {
+            int[] tuple = tuples[t];
+            for (int s = 0; s < 8; s++) {
+                bases[t * 8 + s] = base;
+                lengths[t * 8 + s] = tuple.length;
+                for (int slot : tuple) {
+                    if (slot < 0 || slot >= 16)
+                        throw new IllegalArgumentException("Unknown cell " + slot);
+                    shifts[cell++] = Symmetry.of(s).apply(Bitboard2048.SIZE, slot / 4, slot % 4) * 4;
+                }
+            }
+            base += 1 << (tuple.length * 4);
+        }
+    }
+
+    public static NTupleAI load(String path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(Path.of(path)));
+        if (buffer.getInt() != MAGIC)
+            throw new IOException("Not an n-tuple weights file");
+        int[][] tuples = new int[buffer.getInt()][];
+        for (int t = 0; t < tuples.length; t++) {
+            tuples[t] = new int[buffer.get()];
+            for (int i = 0; i < tuples[t].length; i++)
+                tuples[t][i] = buffer.get();
+        }
+        NTupleAI network = new NTupleAI(tuples);
+        if (buffer.remaining() != network.weights.length * 4)
+            throw new IOException("Weights don't match the tuples");
+        buffer.asFloatBuffer().get(network.weights);
+        return network;
+    }
+
+    public void save(String path) throws IOException {
+        int header = 8;
+        for (int[] tuple : tuples)
+            header += 1 + tuple.length;
+        ByteBuffer buffer = ByteBuffer.allocate(header + weights.length * 4);
+        buffer.putInt(MAGIC).putInt(tuples.length);
+        for (int[] tuple : tuples) {
+            buffer.put((byte) tuple.length);
+            for (int slot : tuple)
+                buffer.put((byte) slot);
+        }
+        buffer.asFloatBuffer().put(weights);
+        Files.write(Path.of(path), buffer.array());
+    }
+
+    public float getLearningRate() {
+        return learningRate;
+    }
+
+    public void setLearningRate(float learningRate) {
+        this.learningRate = learningRate;
+    }
+
+    public float value(long afterstate) {
+        float value = 0;
+        for (int placement = 0, cell = 0; placement < bases.length; placement++) {
+            int index = 0;
+            for (int i = 0; i < lengths[placement]; i++)
+                index |= (int) (afterstate >>> shifts[cell++] & 0xF) << (i * 4);
+            value += weights[bases[placement] + index];
+        }
+        return value;
+    }
+
+    private void update(long afterstate, float delta) {
+        for (int placement = 0, cell = 0; placement < bases.length; placement++) {
+            int index = 0;
+            for (int i = 0; i < lengths[placement]; i++)
+                index |= (int) (afterstate >>> shifts[cell++] & 0xF) << (i * 4);
+            weights[bases[placement] + index] += delta;
+        }
+    }
+
+    @Override
+    public MoveDirection[] getMoveLow(Game2048 game) {
+        // Move reward plus the value of the afterstate, illegal moves get negative infinity
+        long board = Bitboard2048.boardOf(game);
+        long[] afterstates = new long[4];
+        int[] rewards = new int[4];
+        expand(board, afterstates, rewards);
+        float[] values = new float[4];
+        for (int i = 0; i < 4; i++)
+            values[i] = afterstates[i] == board ? Float.NEGATIVE_INFINITY : rewards[i] + value(afterstates[i]);
+        return Game2048AI.orderByValue(values);
+    }
+
+    public double train(int games, RandomGenerator random) {
+        // TD(0) on afterstates: the value of the previous afterstate moves towards
+        // the reward of the next greedy move plus the value of its afterstate, and towards 0 when the game ends
+        // Returns the mean score of the games played
+        long[] afterstates = new long[4];
+        int[] rewards = new int[4];
+        long totalScore = 0;
+        for (int game = 0; game < games; game++) {
+            long board = Bitboard2048.spawn(Bitboard2048.spawn(0, random), random);
+            long previous = 0;
+            boolean started = false;
+            while (true) {
+                expand(board, afterstates, rewards);
+                int best = -1;
+                float bestValue = 0;
+                for (int i = 0; i < 4; i++) {
+                    if (afterstates[i] == board)
+                        continue;
+                    float value = rewards[i] + value(afterstates[i]);
+                    if (best < 0 || value > bestValue) {
+                        best = i;
+                        bestValue = value;
+                    }
+                }
+                if (started)
+                    update(previous, learningRate * ((best < 0 ? 0 : bestValue) - value(previous)));
+                if (best < 0)
+                    break;
+                totalScore += rewards[best];
+                previous = afterstates[best];
+                started = true;
+                board = Bitboard2048.spawn(previous, random);
+            }
+        }
+        return (double) totalScore / games;
+    }
+
+    private static void expand(long board, long[] afterstates, int[] rewards) {
+        // All four moves from one transpose, a line scores the same moved either way
+        long transposed = Bitboard2048.transpose(board);
+        long left = 0, right = 0, up = 0, down = 0;
+        int horizontalScore = 0, verticalScore = 0;
+        for (int line = 0; line < 64; line += 16) {
+            long entry = RowTransitionTable.entry((int) (board >>> line) & 0xFFFF);
+            left |= (long) RowTransitionTable.left(entry) << line;
+            right |= (long) RowTransitionTable.right(entry) << line;
+            horizontalScore += RowTransitionTable.score(entry);
+            entry = RowTransitionTable.entry((int) (transposed >>> line) & 0xFFFF);
+            up |= (long) RowTransitionTable.left(entry) << line;
+            down |= (long) RowTransitionTable.right(entry) << line;
+            verticalScore += RowTransitionTable.score(entry);
+        }
+        afterstates[MoveDirection.UP.ordinal()] = Bitboard2048.transpose(up);
+        afterstates[MoveDirection.DOWN.ordinal()] = Bitboard2048.transpose(down);
+        afterstates[MoveDirection.LEFT.ordinal()] = left;
+        afterstates[MoveDirection.RIGHT.ordinal()] = right;
+        rewards[MoveDirection.UP.ordinal()] = verticalScore;
+        rewards[MoveDirection.DOWN.ordinal()] = verticalScore;
+        rewards[MoveDirection.LEFT.ordinal()] = horizontalScore;
+        rewards[MoveDirection.RIGHT.ordinal()] = horizontalScore;
+    }
+
+    public static void main(String[] args) throws IOException {
+        NTupleAI network = new NTupleAI();
+        RandomGenerator random = new SplittableRandom();
+        for (int i = 0; i < 100; i++) {
+            System.out.println("Round: " + i + " Mean score: " + network.train(1000, random));
+            network.save("ntuple.bin");
+        }
+        QLearning.test(network);
+    }
+}
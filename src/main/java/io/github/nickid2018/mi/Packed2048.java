@@ -0,0 +1,511 @@
+package io.github.nickid2018.mi;
+
+import it.unimi.dsi.fastutil.longs.LongList;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
+
+public class Packed2048 implements Game2048 {
+
+    // One row per word, one exponent byte per cell, column 0 in the lowest byte
+    // The arrays always hold 8 rows so that the 8x8 byte transpose works for every size
+    public static final int MAX_SIZE = 8;
+
+    private static final long BYTE_LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long BYTE_ONES = 0x0101010101010101L;
+
+    private final int size;
+    private final long cellMask;
+    // Highest bit of every byte that has a right neighbour in the row
+    private final long pairMask;
+    private final long[] rows = new long[MAX_SIZE];
+    private final long[] lines = new long[MAX_SIZE];
+    private RandomGenerator random;
+    // Copies take their randoms from this seed and a counter instead of drawing from random
+    private final long copySeed;
+    private long copies;
+    private long maxValue;
+    private long score;
+    // Cached legalMoves(), -1 after the rows change
+    private int legalMoves = -1;
+    private MoveEventListener moveListener;
+    private StayEventListener stayListener;
+    private SpawnEventListener spawnListener;
+    private MoveRecordListener moveRecordListener;
+    private MoveRecord record;
+    private StepEventListener stepListener;
+    // The tile placed by the last spawn, for the step listener
+    private int spawnSlot;
+    private long spawnValue;
+
+    public Packed2048(int size) {
+        this(size, new SplittableRandom());
+    }
+
+    public Packed2048(int size, long seed) {
+        // The same seed and the same moves always replay the same game
+        this(size, new SplittableRandom(seed), seed, true);
+    }
+
+    public Packed2048(int size, RandomGenerator random) {
+        this(size, random, random.nextLong(), true);
+    }
+
+    private Packed2048(int size, RandomGenerator random, long copySeed, boolean spawn) {
+        if (size > MAX_SIZE || size < 3)
+            throw new IllegalArgumentException();
+        this.size = size;
+        this.random = random;
+        this.copySeed = copySeed;
+        cellMask = size == MAX_SIZE ? -1L : (1L << (size * 8)) - 1;
+        pairMask = (cellMask >>> 8) & ~BYTE_LOW_BITS;
+        if (spawn) {
+            spawnRandomValue();
+            spawnRandomValue();
+        }
+    }
+
+    @Override
+    public MoveEventListener getMoveListener() {
+        return moveListener;
+    }
+
+    @Override
+    public void setMoveListener(MoveEventListener moveListener) {
+        this.moveListener = moveListener;
+    }
+
+    @Override
+    public StayEventListener getStayListener() {
+        return stayListener;
+    }
+
+    @Override
+    public void setStayListener(StayEventListener stayListener) {
+        this.stayListener = stayListener;
+    }
+
+    @Override
+    public SpawnEventListener getSpawnListener() {
+        return spawnListener;
+    }
+
+    @Override
+    public void setSpawnListener(SpawnEventListener spawnListener) {
+        this.spawnListener = spawnListener;
+    }
+
+    @Override
+    public MoveRecordListener getMoveRecordListener() {
+        return moveRecordListener;
+    }
+
+    @Override
+    public void setMoveRecordListener(MoveRecordListener moveRecordListener) {
+        this.moveRecordListener = moveRecordListener;
+        record = moveRecordListener == null ? null : new MoveRecord(size * size);
+    }
+
+    @Override
+    public StepEventListener getStepListener() {
+        return stepListener;
+    }
+
+    @Override
+    public void setStepListener(StepEventListener stepListener) {
+        this.stepListener = stepListener;
+    }
+
+    @Override
+    public RandomGenerator getRandom() {
+        return random;
+    }
+
+    @Override
+    public void setRandom(RandomGenerator random) {
+        this.random = random;
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(rows, 0);
+        legalMoves = -1;
+        score = 0;
+        maxValue = 0;
+        spawnRandomValue();
+        spawnRandomValue();
+    }
+
+    public long getRow(int row) {
+        return rows[row];
+    }
+
+    @Override
+    public long getMaxValue() {
+        return maxValue;
+    }
+
+    @Override
+    public long getScore() {
+        return score;
+    }
+
+    @Override
+    public void setScore(long score) {
+        this.score = score;
+    }
+
+    @Override
+    public boolean doMove(MoveDirection direction) {
+        return doMove(direction, null);
+    }
+
+    @Override
+    public boolean doMove(MoveDirection direction, LongList merges) {
+        if (record != null)
+            record.clear(direction);
+        boolean success = internalMove(direction, merges);
+        if (success) {
+            // If moved successfully, spawn new value
+            spawnRandomValue();
+            if (moveRecordListener != null)
+                moveRecordListener.moved(record);
+            if (stepListener != null)
+                stepListener.step(direction, spawnSlot, spawnValue);
+        }
+        return success;
+    }
+
+    @Override
+    public int fromLineToSlot(int line, int index, MoveDirection direction) {
+        return switch (direction) {
+            case UP -> index * size + line;
+            case DOWN -> (size - 1 - index) * size + line;
+            case LEFT -> line * size + index;
+            case RIGHT -> (line + 1) * size - 1 - index;
+        };
+    }
+
+    public boolean internalMove(MoveDirection direction, LongList merges) {
+        // Columns are handled as rows of the transposed board
+        boolean vertical = direction == MoveDirection.UP || direction == MoveDirection.DOWN;
+        System.arraycopy(rows, 0, lines, 0, MAX_SIZE);
+        if (vertical)
+            transpose(lines);
+        boolean high = direction == MoveDirection.DOWN || direction == MoveDirection.RIGHT;
+        // Single tiles only matter to the listeners, otherwise whole lines move at once
+        boolean tiles = moveListener != null || stayListener != null || record != null;
+        boolean success = false;
+        for (int line = 0; line < size; line++) {
+            long source = lines[line];
+            long result;
+            if (tiles)
+                result = high ? moveHigh(line, source, direction, merges) : moveLow(line, source, direction, merges);
+            else
+                result = high ? mirror(slide(mirror(source), merges)) : slide(source, merges);
+            lines[line] = result;
+            success |= result != source;
+        }
+        if (!success)
+            return false;
+        if (vertical)
+            transpose(lines);
+        System.arraycopy(lines, 0, rows, 0, MAX_SIZE);
+        legalMoves = -1;
+        return true;
+    }
+
+    private long slide(long row, LongList merges) {
+        // Moves the tiles of a line towards byte 0: compact, merge equal neighbours pairwise from byte 0 up,
+        // then compact again to close the gaps the merges left
+        long compacted = compact(row);
+        long equal = zeroMask(compacted ^ (compacted >>> 8)) & ~zeroMask(compacted) & pairMask;
+        if (equal == 0)
+            return compacted;
+        // In a run of equal tiles only every other pair merges, the first tile of a pair keeps the sum
+        long pairs = 0;
+        while (equal != 0) {
+            long first = equal & -equal;
+            pairs |= first;
+            equal &= ~(first | first << 8);
+        }
+        for (long pair = pairs; pair != 0; pair &= pair - 1) {
+            long result = 2L << ((compacted >>> (Long.numberOfTrailingZeros(pair) - 7)) & 0xFF);
+            score += result;
+            if (merges != null)
+                merges.add(result);
+            if (result > maxValue)
+                maxValue = result;
+        }
+        long firsts = pairs >>> 7;
+        return compact((compacted + firsts) & ~(firsts * 0xFF << 8));
+    }
+
+    private static long compact(long row) {
+        // Moves every non-zero byte down by the number of zero bytes below it, keeping their order
+        // The distances are moved along with the bytes in steps of one, two and four bytes
+        long zeros = zeroMask(row) >>> 7;
+        long distances = ((zeros << 8) * BYTE_ONES) & ~(zeros * 0xFF);
+        for (int step = 0; step < 3; step++) {
+            long moving = ((distances >>> step) & BYTE_ONES) * 0xFF;
+            row = (row & ~moving) | ((row & moving) >>> (8 << step));
+            distances = (distances & ~moving) | ((distances & moving) >>> (8 << step));
+        }
+        return row;
+    }
+
+    private long mirror(long row) {
+        // Reverses the cells of a line, so that byte 0 becomes byte size - 1
+        return Long.reverseBytes(row) >>> ((MAX_SIZE - size) * 8);
+    }
+
+    private long moveLow(int line, long row, MoveDirection direction, LongList merges) {
+        // Tiles slide towards byte 0, merging a tile into the previous one adds one to its exponent
+        long out = 0;
+        int nowPosition = 0;
+        int lastIndex = 0;
+        long last = 0;
+        boolean moved = false;
+        for (int index = 0; index < size; index++) {
+            long value = (row >>> (index * 8)) & 0xFF;
+            if (last != 0 && last == value) {
+                out += 1L << ((nowPosition - 1) * 8);
+                merged(line, lastIndex, index, nowPosition - 1, direction, value, merges);
+                last = 0;
+                moved = true;
+            } else if (value != 0) {
+                out |= value << (nowPosition * 8);
+                slid(line, index, nowPosition, direction, value, moved);
+                last = value;
+                lastIndex = index;
+                nowPosition++;
+            } else
+                moved = true;
+        }
+        return out;
+    }
+
+    private long moveHigh(int line, long row, MoveDirection direction, LongList merges) {
+        // Mirror of moveLow, tiles slide towards byte size - 1
+        long out = 0;
+        int nowPosition = 0;
+        int lastIndex = 0;
+        long last = 0;
+        boolean moved = false;
+        for (int index = 0; index < size; index++) {
+            long value = (row >>> ((size - 1 - index) * 8)) & 0xFF;
+            if (last != 0 && last == value) {
+                out += 1L << ((size - nowPosition) * 8);
+                merged(line, lastIndex, index, nowPosition - 1, direction, value, merges);
+                last = 0;
+                moved = true;
+            } else if (value != 0) {
+                out |= value << ((size - 1 - nowPosition) * 8);
+                slid(line, index, nowPosition, direction, value, moved);
+                last = value;
+                lastIndex = index;
+                nowPosition++;
+            } else
+                moved = true;
+        }
+        return out;
+    }
+
+    private void merged(int line, int lastIndex, int index, int endIndex, MoveDirection direction, long exponent, LongList merges) {
+        long source = 1L << exponent;
+        long result = source << 1;
+        score += result;
+        if (merges != null)
+            merges.add(result);
+        if (result > maxValue)
+            maxValue = result;
+        if (moveListener != null) {
+            moveListener.move(line, lastIndex, endIndex, direction, source, result);
+            moveListener.move(line, index, endIndex, direction, source, result);
+        }
+        if (record != null)
+            record.merge(fromLineToSlot(line, index, direction), result);
+    }
+
+    private void slid(int line, int index, int endIndex, MoveDirection direction, long exponent, boolean moved) {
+        if (moved && moveListener != null)
+            moveListener.move(line, index, endIndex, direction, 1L << exponent, 1L << exponent);
+        if (!moved && stayListener != null)
+            stayListener.stay(line, index, direction);
+        if (record != null)
+            record.add(fromLineToSlot(line, index, direction), fromLineToSlot(line, endIndex, direction), 1L << exponent);
+    }
+
+    @Override
+    public int legalMoves() {
+        if (legalMoves < 0)
+            legalMoves = computeLegalMoves();
+        return legalMoves;
+    }
+
+    private int computeLegalMoves() {
+        // Works on the highest bit of each byte: an empty cell beside a tile allows moving towards it,
+        // a zero byte in the difference marks two equal neighbours that allow moving both ways
+        long cells = cellMask & ~BYTE_LOW_BITS;
+        long pairs = cells >>> 8;
+        long left = 0, right = 0, up = 0, down = 0;
+        long empty = zeroMask(rows[0]) & cells;
+        for (int row = 0; row < size; row++) {
+            long value = rows[row];
+            long filled = ~empty & cells;
+            long horizontal = zeroMask(value ^ (value >>> 8)) & filled & pairs;
+            left |= horizontal | (empty & (filled >>> 8) & pairs);
+            right |= horizontal | (filled & (empty >>> 8) & pairs);
+            if (row != size - 1) {
+                long next = rows[row + 1];
+                long nextEmpty = zeroMask(next) & cells;
+                long vertical = zeroMask(value ^ next) & filled;
+                up |= vertical | (empty & ~nextEmpty & cells);
+                down |= vertical | (filled & nextEmpty);
+                empty = nextEmpty;
+            }
+        }
+        return (left != 0 ? MoveDirection.LEFT.mask() : 0) | (right != 0 ? MoveDirection.RIGHT.mask() : 0)
+                | (up != 0 ? MoveDirection.UP.mask() : 0) | (down != 0 ? MoveDirection.DOWN.mask() : 0);
+    }
+
+    void spawnRandomValue() {
+        int spareCount = getSpareCount();
+        if (spareCount == 0)
+            // It won't be invoked
+            return;
+        int index = random.nextInt(spareCount);  // Select random position
+        int row = 0;
+        long empty = zeroMask(rows[0]) & cellMask;
+        int count;
+        while (index >= (count = Long.bitCount(empty))) {
+            index -= count;
+            empty = zeroMask(rows[++row]) & cellMask;
+        }
+        int column = Bits.select(empty, index) >>> 3;
+        long exponent = random.nextFloat() < 0.95f ? 1 : 2;  // 95% spawns 2, 5% spawns 4
+        long value = 1L << exponent;
+        if (value > maxValue)
+            maxValue = value;
+        rows[row] |= exponent << (column * 8);
+        legalMoves = -1;
+        if (spawnListener != null)
+            spawnListener.spawn(row, column, value);
+        spawnSlot = row * size + column;
+        spawnValue = value;
+        if (record != null)
+            record.spawn(row * size + column, value);
+    }
+
+    @Override
+    public void set(int row, int column, long value) {
+        int shift = column * 8;
+        long exponent = value == 0 ? 0 : Long.numberOfTrailingZeros(value);
+        rows[row] = (rows[row] & ~(0xFFL << shift)) | (exponent << shift);
+        legalMoves = -1;
+    }
+
+    @Override
+    public void validate() {
+        for (int i = 0; i < size * size; i++)
+            maxValue = Math.max(maxValue, get(i / size, i % size));
+    }
+
+    @Override
+    public long get(int row, int column) {
+        long exponent = (rows[row] >>> (column * 8)) & 0xFF;
+        return exponent == 0 ? 0 : 1L << exponent;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int getSpareCount() {
+        int spareCount = 0;
+        for (int row = 0; row < size; row++)
+            spareCount += Long.bitCount(zeroMask(rows[row]) & cellMask);
+        return spareCount;
+    }
+
+    @Override
+    public Packed2048 copy() {
+        return copy(new SplittableRandom(Game2048.mix(copySeed, ++copies)));
+    }
+
+    @Override
+    public Packed2048 copy(RandomGenerator random) {
+        Packed2048 copy = new Packed2048(size, random, Game2048.mix(copySeed, ++copies), false);
+        System.arraycopy(rows, 0, copy.rows, 0, MAX_SIZE);
+        copy.maxValue = maxValue;
+        copy.score = score;
+        copy.legalMoves = legalMoves;
+        return copy;
+    }
+
+    @Override
+    public int snapshotSize() {
+        return 2 + size;
+    }
+
+    @Override
+    public void saveTo(long[] buffer, int offset) {
+        buffer[offset] = score;
+        buffer[offset + 1] = maxValue;
+        System.arraycopy(rows, 0, buffer, offset + 2, size);
+    }
+
+    @Override
+    public void restoreFrom(long[] buffer, int offset) {
+        score = buffer[offset];
+        maxValue = buffer[offset + 1];
+        System.arraycopy(buffer, offset + 2, rows, 0, size);
+        legalMoves = -1;
+    }
+
+    @Override
+    public void transform(Symmetry symmetry) {
+        legalMoves = -1;
+        if (symmetry.isTranspose())
+            transpose(rows);
+        if (symmetry.isFlipHorizontal())
+            for (int row = 0; row < size; row++)
+                rows[row] = Long.reverseBytes(rows[row]) >>> ((MAX_SIZE - size) * 8);
+        if (symmetry.isFlipVertical())
+            for (int row = 0; row < size / 2; row++) {
+                long tmp = rows[row];
+                rows[row] = rows[size - 1 - row];
+                rows[size - 1 - row] = tmp;
+            }
+    }
+
+    public static void transpose(long[] rows) {
+        // Swap the off-diagonal 4x4, then 2x2, then 1x1 byte blocks
+        for (int i = 0; i < 4; i++) {
+            long a = rows[i];
+            long b = rows[i + 4];
+            rows[i] = (a & 0x00000000FFFFFFFFL) | (b << 32);
+            rows[i + 4] = (b & 0xFFFFFFFF00000000L) | (a >>> 32);
+        }
+        for (int i = 0; i < MAX_SIZE; i += (i & 1) == 0 ? 1 : 3) {
+            long a = rows[i];
+            long b = rows[i + 2];
+            rows[i] = (a & 0x0000FFFF0000FFFFL) | ((b << 16) & 0xFFFF0000FFFF0000L);
+            rows[i + 2] = (b & 0xFFFF0000FFFF0000L) | ((a >>> 16) & 0x0000FFFF0000FFFFL);
+        }
+        for (int i = 0; i < MAX_SIZE; i += 2) {
+            long a = rows[i];
+            long b = rows[i + 1];
+            rows[i] = (a & 0x00FF00FF00FF00FFL) | ((b << 8) & 0xFF00FF00FF00FF00L);
+            rows[i + 1] = (b & 0xFF00FF00FF00FF00L) | ((a >>> 8) & 0x00FF00FF00FF00FFL);
+        }
+    }
+
+    private static long zeroMask(long value) {
+        // Highest bit of each byte is set when the whole byte is zero
+        return ~(((value & BYTE_LOW_BITS) + BYTE_LOW_BITS) | value | BYTE_LOW_BITS);
+    }
+}
@@ -2,10 +2,10 @@ package io.github.nickid2018.mi;
 
 import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.longs.LongList;
-import org.apache.commons.lang3.ArrayUtils;
 import org.deeplearning4j.nn.conf.CNN2DFormat;
 import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.graph.GraphVertex;
 import org.deeplearning4j.nn.conf.graph.ReshapeVertex;
 import org.deeplearning4j.nn.conf.layers.ConvolutionLayer;
 import org.deeplearning4j.nn.conf.layers.DenseLayer;
@@ -14,43 +14,84 @@ import org.deeplearning4j.nn.graph.ComputationGraph;
 import org.deeplearning4j.nn.weights.WeightInit;
 import org.deeplearning4j.util.ModelSerializer;
 import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.memory.conf.WorkspaceConfiguration;
+import org.nd4j.linalg.api.memory.enums.AllocationPolicy;
+import org.nd4j.linalg.api.memory.enums.LearningPolicy;
+import org.nd4j.linalg.api.memory.enums.SpillPolicy;
 import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.MultiDataSet;
+import org.nd4j.linalg.factory.Environment;
 import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
 import org.nd4j.linalg.learning.config.RmsProp;
 import org.nd4j.linalg.lossfunctions.LossFunctions;
 import org.nd4j.linalg.schedule.ScheduleType;
 import org.nd4j.linalg.schedule.StepSchedule;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
-public class QLearning {
+public class QLearning implements Game2048AI {
 
     public static final double LOG2 = Math.log(2);
+    private static final int QUEUE_CAPACITY = 1 << 16;
+    private static final long REPORT_NANOS = 10_000_000_000L;
+    private static final long MODEL_CHECK_NANOS = 1_000_000_000L;
+    // Network outputs and everything fit() allocates outside the network's own workspaces go to
+    // per-thread workspaces, sized on their first use and reused on every later call
+    private static final WorkspaceConfiguration WORKSPACE = WorkspaceConfiguration.builder()
+            .policyLearning(LearningPolicy.FIRST_LOOP)
+            .policyAllocation(AllocationPolicy.STRICT)
+            .policySpill(SpillPolicy.REALLOCATE)
+            .build();
+    private static final String INFERENCE = "QLearning inference";
+    private static final String FIT = "QLearning fit";
 
     private final float gamma;
     private float epsilon;
 
-    private final float[][][][] replayMemory;
-    private final float[][] replayLabels;
-    private final int replayMemorySize;
-    private final int[] replayMemoryIndexArray;
-    private int replayMemoryIndex;
+    private final ReplayMemory replayMemory;
+    // Every fitInterval new transitions, as many samples are drawn from the whole memory and fitted
+    private int fitInterval;
+    private int sinceFit;
     private final Random random = new Random();
 
     private final ComputationGraph network;
+    // When set, training labels are rollout scores instead of values bootstrapped from the network
+    private MonteCarloAI rollouts;
+    private int parallelGames = 1;
+    // Replay samples are fitted in minibatches of batchSize, labels are staged in the buffer and copied to the array
+    private int batchSize = 32;
+    private StateBatch fitStates;
+    private float[] labelBuffer;
+    private INDArray batchLabels;
+    private final MultiDataSet batch = new MultiDataSet(new INDArray[1], new INDArray[1]);
+    private final StateBatch moveStates = new StateBatch(1);
+    // Values getMoveLow() has seen since the parameters last changed, null when off
+    private InferenceCache cache;
+    // The actors of trainParallel() pick up new parameters every refreshInterval minibatches
+    private int refreshInterval = 100;
 
     public QLearning(float gamma, float epsilon, float learningRate, int replayMemorySize) {
         this.gamma = gamma;
         this.epsilon = epsilon;
-        this.replayMemorySize = replayMemorySize;
-        replayMemory = new float[replayMemorySize][][][];
-        replayLabels = new float[replayMemorySize][4];
-        replayMemoryIndexArray = new int[replayMemorySize];
-        for (int i = 0; i < replayMemorySize; i++)
-            replayMemoryIndexArray[i] = i;
+        replayMemory = new ReplayMemory(replayMemorySize);
+        fitInterval = replayMemorySize;
 
         ComputationGraphConfiguration computationGraphConfiguration = new NeuralNetConfiguration.Builder()
                 .updater(new RmsProp(new StepSchedule(ScheduleType.ITERATION, learningRate, 0.9, 1000)))
@@ -63,12 +104,12 @@ public class QLearning {
                 .addLayer("conv2l2", new ConvolutionLayer.Builder(2, 1).dataFormat(CNN2DFormat.NHWC).nIn(128).nOut(128).build(), "conv1l")
                 .addLayer("conv2r1", new ConvolutionLayer.Builder(1, 2).dataFormat(CNN2DFormat.NHWC).nIn(128).nOut(128).build(), "conv1r")
                 .addLayer("conv2r2", new ConvolutionLayer.Builder(2, 1).dataFormat(CNN2DFormat.NHWC).nIn(128).nOut(128).build(), "conv1r")
-                .addVertex("reConv1l", new ReshapeVertex(1, 128 * 4 * 3), "conv1l")
-                .addVertex("reConv1r", new ReshapeVertex(1, 128 * 3 * 4), "conv1r")
-                .addVertex("reConv2l1", new ReshapeVertex(1, 128 * 4 * 2), "conv2l1")
-                .addVertex("reConv2l2", new ReshapeVertex(1, 128 * 3 * 3), "conv2l2")
-                .addVertex("reConv2r1", new ReshapeVertex(1, 128 * 3 * 3), "conv2r1")
-                .addVertex("reConv2r2", new ReshapeVertex(1, 128 * 2 * 4), "conv2r2")
+                .addVertex("reConv1l", new ReshapeVertex(-1, 128 * 4 * 3), "conv1l")
+                .addVertex("reConv1r", new ReshapeVertex(-1, 128 * 3 * 4), "conv1r")
+                .addVertex("reConv2l1", new ReshapeVertex(-1, 128 * 4 * 2), "conv2l1")
+                .addVertex("reConv2l2", new ReshapeVertex(-1, 128 * 3 * 3), "conv2l2")
+                .addVertex("reConv2r1", new ReshapeVertex(-1, 128 * 3 * 3), "conv2r1")
+                .addVertex("reConv2r2", new ReshapeVertex(-1, 128 * 2 * 4), "conv2r2")
                 .addLayer("dense", new DenseLayer.Builder().nIn(7424).nOut(256).build(),
                         "reConv1l", "reConv1r", "reConv2l1", "reConv2l2", "reConv2r1", "reConv2r2")
                 .addLayer("output", new OutputLayer.Builder(LossFunctions.LossFunction.MSE)
@@ -77,180 +118,415 @@ public class QLearning {
                 .build();
         network = new ComputationGraph(computationGraphConfiguration);
         network.init();
+        allocateBatch();
     }
 
     public QLearning(float gamma, float epsilon, int replayMemorySize, String path) throws IOException {
         this.gamma = gamma;
         this.epsilon = epsilon;
-        this.replayMemorySize = replayMemorySize;
-        replayMemory = new float[replayMemorySize][][][];
-        replayLabels = new float[replayMemorySize][4];
-        replayMemoryIndexArray = new int[replayMemorySize];
-        for (int i = 0; i < replayMemorySize; i++)
-            replayMemoryIndexArray[i] = i;
-        network = ModelSerializer.restoreComputationGraph(path);
-    }
-
-    private float[][][] serializeState(Simple2048 game) {
-        float[][][] state = new float[4][4][16];
-        for (int i = 0; i < 16; i++) {
-            int row = i / 4;
-            int col = i % 4;
-            long val = game.get(row, col);
-            if (val == 0)
-                state[row][col][0] = 1;
-            else
-                state[row][col][(int) (Math.log(val) / LOG2)] = 1;
-        }
-        return state;
+        replayMemory = new ReplayMemory(replayMemorySize);
+        fitInterval = replayMemorySize;
+        network = batchable(ModelSerializer.restoreComputationGraph(path));
+        allocateBatch();
     }
 
-    private void rotateState(float[][][] state, float[] label) {
-        float[][][] newState = new float[4][4][16];
-        for (int i = 0; i < 16; i++) {
-            int row = i / 4;
-            int col = i % 4;
-            newState[col][3 - row] = state[row][col];
-        }
-        float first = label[0];
-        for (int i = 0; i < 3; i++)
-            label[i] = label[i + 1];
-        label[3] = first;
-        System.arraycopy(newState, 0, state, 0, 4);
+    private static ComputationGraph batchable(ComputationGraph graph) {
+        // Older models reshape to a batch of one, rebuild them with the same parameters and updater state
+        ComputationGraphConfiguration configuration = graph.getConfiguration().clone();
+        boolean fixed = false;
+        for (GraphVertex vertex : configuration.getVertices().values())
+            if (vertex instanceof ReshapeVertex reshape && reshape.getNewShape()[0] != -1) {
+                int[] shape = reshape.getNewShape().clone();
+                shape[0] = -1;
+                reshape.setNewShape(shape);
+                fixed = true;
+            }
+        if (!fixed)
+            return graph;
+        ComputationGraph batched = new ComputationGraph(configuration);
+        batched.init(graph.params(), true);
+        if (graph.getUpdater(false) != null && graph.getUpdater().getStateViewArray() != null)
+            batched.getUpdater().setStateViewArray(graph.getUpdater().getStateViewArrayCopy());
+        return batched;
     }
 
     public void train(int epoch, int decreaseTimes, float decreaseRate) {
-        int total = 0;
+        SelfPlay selfPlay = new SelfPlay(network, random, rollouts, Math.min(parallelGames, epoch), epoch,
+                decreaseTimes, decreaseRate);
+        TransitionSink sink = (board, labels) -> {
+            replayMemory.add(board, labels);
+            if (++sinceFit == fitInterval)
+                fitReplayMemory(selfPlay);
+        };
+        while (selfPlay.active > 0)
+            selfPlay.step(sink);
+        if (sinceFit > 0)
+            fitReplayMemory(selfPlay);
+        epsilon = selfPlay.epsilon;
+        selfPlay.states.close();
+    }
+
+    public void trainParallel(int actors, long transitions, int decreaseTimes, float decreaseRate)
+            throws InterruptedException {
+        // Actor threads play against their own copies of the network, refreshed every refreshInterval
+        // minibatches, and queue their transitions; this thread moves them into the replay memory
+        // and fits one minibatch per round until it has received the given number of transitions
+        if (actors < 1)
+            throw new IllegalArgumentException();
+        BlockingQueue<Transition> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        // The actors and this thread share the cores, so each of them gets its share of the op threads
+        Environment environment = Nd4j.getEnvironment();
+        int maxThreads = environment.maxThreads();
+        int maxMasterThreads = environment.maxMasterThreads();
+        int opThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / (actors + 1));
+        environment.setMaxThreads(opThreads);
+        environment.setMaxMasterThreads(opThreads);
+        // One copy of the parameters, refreshed in place under its own lock, the version tells the actors when
+        INDArray parameters = network.params().dup();
+        AtomicLong version = new AtomicLong();
+        SelfPlay[] selfPlays = new SelfPlay[actors];
+        Thread[] threads = new Thread[actors];
+        for (int i = 0; i < actors; i++) {
+            SelfPlay selfPlay = new SelfPlay(network.clone(), new Random(random.nextLong()),
+                    rollouts == null ? null : rollouts.split(), parallelGames, Long.MAX_VALUE, decreaseTimes, decreaseRate);
+            selfPlays[i] = selfPlay;
+            threads[i] = new Thread(() -> act(selfPlay, parameters, version, queue, failure), "QLearning actor " + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+
+        List<Transition> drained = new ArrayList<>();
+        TransitionSource source = wait -> {
+            if (failure.get() != null)
+                throw new IllegalStateException("Actor failed", failure.get());
+            if (wait) {
+                Transition first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first != null)
+                    drained.add(first);
+            }
+            return drainQueue(queue, drained);
+        };
+        try {
+            learn(source, transitions, () -> {
+                synchronized (parameters) {
+                    parameters.assign(network.params());
+                }
+                version.incrementAndGet();
+            });
+        } finally {
+            // Keep emptying the queue while the actors stop, so that none stays blocked on a full queue
+            // and what they have queued still reaches the replay memory
+            for (Thread thread : threads)
+                thread.interrupt();
+            for (Thread thread : threads)
+                while (thread.isAlive()) {
+                    drainQueue(queue, drained);
+                    thread.join(10);
+                }
+            drainQueue(queue, drained);
+            for (SelfPlay selfPlay : selfPlays)
+                selfPlay.states.close();
+            parameters.close();
+            environment.setMaxThreads(maxThreads);
+            environment.setMaxMasterThreads(maxMasterThreads);
+        }
+
+        int games = 0;
         int maxSteps = 0;
         long maxValue = 0;
-        for (int i = 0; i < epoch; i++) {
-            Simple2048 game = new Simple2048(4);
-            int rotate = random.nextInt(4);
-            for (int j = 0; j < rotate; j++)
-                game.rotateRight();
-            LongList mergeList = new LongArrayList();
+        epsilon = selfPlays[0].epsilon;
+        for (SelfPlay selfPlay : selfPlays) {
+            games += selfPlay.finished;
+            maxSteps = Math.max(maxSteps, selfPlay.maxSteps);
+            maxValue = Math.max(maxValue, selfPlay.maxValue);
+            epsilon = Math.min(epsilon, selfPlay.epsilon);
+        }
+        System.out.println("Games: " + games + " Max: " + maxValue + " Steps: " + maxSteps);
+    }
 
-            int steps = 0;
-            while (game.checkContinue()) {
-                steps++;
-                total++;
-                Simple2048 prevState = game.copy();
-                long prevScore = game.getScore();
-                long prevMax = game.getMaxValue();
-                long prevSpare = game.getSpareCount();
+    public void trainFromRing(ExperienceRing ring, long transitions, Path model) throws IOException, InterruptedException {
+        // Learner for self-play processes running actInto() on the same ring and model file
+        // The model is saved at the start and every refreshInterval minibatches, the actors reload it from there
+        saveModelAtomically(model);
+        TransitionSource source = wait -> {
+            int count = ring.drainTo(replayMemory, QUEUE_CAPACITY);
+            if (count == 0 && wait)
+                Thread.sleep(10);
+            return count;
+        };
+        learn(source, transitions, () -> {
+            try {
+                saveModelAtomically(model);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
 
-                INDArray inputsA = Nd4j.createFromArray(serializeState(game)).reshape(1, 4, 4, 16);
-                INDArray output = network.output(inputsA)[0];
-                float[] labels = output.toFloatVector();
-                inputsA.close();
-                output.close();
+    private void learn(TransitionSource source, long transitions, Runnable publish) throws InterruptedException {
+        // Moves transitions from the source into the replay memory and fits one minibatch per round
+        // until the given number of transitions has arrived, publishing the parameters every refreshInterval minibatches
+        long received = 0;
+        long fitted = 0;
+        long batches = 0;
+        long start = System.nanoTime();
+        long reportTime = start;
+        long reportReceived = 0;
+        long reportFitted = 0;
+        while (received < transitions) {
+            received += source.drainTo(replayMemory.size() < batchSize);
+            if (replayMemory.size() >= batchSize) {
+                fitSamples(batchSize);
+                fitted += batchSize;
+                if (++batches % refreshInterval == 0)
+                    publish.run();
+            }
 
-                if (random.nextFloat() < epsilon) {
-                    int action = random.nextInt(4);
-                    while (!game.doMove(MoveDirection.values()[action], mergeList))
-                        action = random.nextInt(4);
-                    doForward(labels, prevScore, prevMax, prevSpare, mergeList, action, game);
-                    mergeList.clear();
-                } else {
-                    Simple2048 next = null;
-                    MoveDirection[] dirs = getMoveLow(game);
-                    for (MoveDirection dir : dirs) {
-                        Simple2048 tmp = game.copy();
-                        if (tmp.doMove(dir, mergeList)) {
-                            doForward(labels, prevScore, prevMax, prevSpare, mergeList, dir.ordinal(), tmp);
-                            mergeList.clear();
-                            next = tmp;
-                        } else
-                            labels[dir.ordinal()] = 0;
-                    }
-                    if (next != null)
-                        game = next;
-                }
+            long now = System.nanoTime();
+            if (now - reportTime >= REPORT_NANOS) {
+                double seconds = (now - reportTime) / 1e9;
+                System.out.println("Actors: " + (int) ((received - reportReceived) / seconds) + " transitions/s"
+                        + " Learner: " + (int) ((fitted - reportFitted) / seconds) + " samples/s"
+                        + " Replay: " + replayMemory.size() + " Score: " + network.score());
+                reportTime = now;
+                reportReceived = received;
+                reportFitted = fitted;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println("Actors: " + (int) (received / seconds) + " transitions/s"
+                + " Learner: " + (int) (fitted / seconds) + " samples/s");
+    }
 
-                if (total % decreaseTimes == 0)
-                    epsilon *= decreaseRate;
+    private int drainQueue(BlockingQueue<Transition> queue, List<Transition> drained) {
+        // Moves the queued transitions into the replay memory, drained is scratch space
+        queue.drainTo(drained);
+        for (Transition transition : drained)
+            replayMemory.add(transition.board, transition.labels);
+        int count = drained.size();
+        drained.clear();
+        return count;
+    }
 
-                float[][][] state = serializeState(prevState);
-                replayMemory[replayMemoryIndex] = state;
-                replayLabels[replayMemoryIndex] = labels;
-                replayMemoryIndex++;
-
-                if (replayMemoryIndex == replayMemorySize || (epoch == i + 1 && !game.checkContinue())) {
-                    Collections.shuffle(Arrays.asList(replayMemoryIndexArray), random);
-                    INDArray[] inputs = new INDArray[1];
-                    INDArray[] outputs = new INDArray[1];
-                    for (int index : replayMemoryIndexArray) {
-                        if (index >= replayMemoryIndex)
-                            break;
-                        inputs[0] = Nd4j.createFromArray(replayMemory[index]).reshape(1, 4, 4, 16);
-                        outputs[0] = Nd4j.createFromArray(replayLabels[index]).reshape(1, 4);
-                        network.fit(inputs, outputs);
-                        inputs[0].close();
-                        outputs[0].close();
+    private void act(SelfPlay selfPlay, INDArray parameters, AtomicLong version, BlockingQueue<Transition> queue,
+                     AtomicReference<Throwable> failure) {
+        // Runs until interrupted, picking up new parameters between steps
+        List<Transition> transitions = new ArrayList<>();
+        TransitionSink sink = (board, labels) -> transitions.add(new Transition(board, labels));
+        long current = -1;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long latest = version.get();
+                if (latest != current) {
+                    synchronized (parameters) {
+                        selfPlay.network.setParams(parameters);
                     }
-                    System.out.println("Game: " + i + " Epsilon: " + epsilon + " Score: " + network.score()
-                            + " Max: " + maxValue + " Steps: " + maxSteps);
-                    Simple2048 tmp = new Simple2048(4);
-                    int steps2 = 0;
-                    while (tmp.checkContinue()) {
-                        steps2++;
-                        MoveDirection[] direction = getMoveLow(game);
-                        for (int j = 3; j >= 0; j--)
-                            if (tmp.doMove(direction[j]))
-                                break;
+                    current = latest;
+                }
+                selfPlay.step(sink);
+                for (Transition transition : transitions)
+                    queue.put(transition);
+                transitions.clear();
+            }
+        } catch (InterruptedException ignored) {
+        } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    public void actInto(ExperienceRing ring, Path model, int decreaseTimes, float decreaseRate) {
+        // Self-play for a separate learner process, runs until interrupted
+        // Transitions go to the ring, parameters are reloaded whenever the learner replaces the model file
+        SelfPlay selfPlay = new SelfPlay(network, random, rollouts, parallelGames, Long.MAX_VALUE,
+                decreaseTimes, decreaseRate);
+        TransitionSink sink = ring::add;
+        FileTime loaded = null;
+        long nextCheck = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            if (System.nanoTime() >= nextCheck) {
+                nextCheck = System.nanoTime() + MODEL_CHECK_NANOS;
+                try {
+                    FileTime modified = Files.getLastModifiedTime(model);
+                    if (!modified.equals(loaded)) {
+                        // Only the parameters are needed, they are copied in and the loaded graph is freed
+                        ComputationGraph latest = ModelSerializer.restoreComputationGraph(model.toFile(), false);
+                        try {
+                            network.setParams(latest.params());
+                        } finally {
+                            latest.close();
+                        }
+                        if (cache != null)
+                            cache.clear();
+                        loaded = modified;
                     }
-                    System.out.println("Test: " + tmp.getScore() + " " + tmp.getMaxValue() + " " + steps2);
-                    replayMemoryIndex = 0;
+                } catch (IOException ignored) {
+                    // Not written yet, keep the current parameters
                 }
             }
-            if (steps > maxSteps)
-                maxSteps = steps;
-            if (game.getMaxValue() > maxValue)
-                maxValue = game.getMaxValue();
+            selfPlay.step(sink);
+        }
+        epsilon = selfPlay.epsilon;
+        selfPlay.states.close();
+    }
+
+    private void saveModelAtomically(Path model) throws IOException {
+        // Readers in other processes never see a partly written model
+        Path temporary = model.resolveSibling(model.getFileName() + ".tmp");
+        ModelSerializer.writeModel(network, temporary.toFile(), false);
+        Files.move(temporary, model, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void fitReplayMemory(SelfPlay selfPlay) {
+        long start = System.nanoTime();
+        int samples = sinceFit;
+        fitSamples(samples);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println("Game: " + selfPlay.finished + " Epsilon: " + selfPlay.epsilon + " Score: " + network.score()
+                + " Max: " + selfPlay.maxValue + " Steps: " + selfPlay.maxSteps + " Samples/s: " + (int) (samples / seconds));
+        Game2048 tmp = new Bitboard2048();
+        int steps = 0;
+        while (tmp.checkContinue()) {
+            steps++;
+            MoveDirection[] direction = getMoveLow(tmp);
+            int legal = tmp.legalMoves();
+            for (int j = 3; j >= 0; j--)
+                if ((legal & direction[j].mask()) != 0) {
+                    tmp.doMove(direction[j]);
+                    break;
+                }
+        }
+        System.out.println("Test: " + tmp.getScore() + " " + tmp.getMaxValue() + " " + steps);
+        sinceFit = 0;
+    }
+
+    private void fitSamples(int samples) {
+        // Boards are expanded to one-hot planes only here, while the batch is assembled
+        fitStates.clear();
+        for (int i = 0; i < samples; i++) {
+            int slot = replayMemory.sample(random);
+            replayMemory.labels(slot, labelBuffer, fitStates.add(replayMemory.board(slot)) * 4);
+            if (fitStates.size() == batchSize)
+                fitBatch();
+        }
+        if (fitStates.size() > 0)
+            fitBatch();
+    }
+
+    @SuppressWarnings("try")
+    private void fitBatch() {
+        // The labels are copied into the same array every batch, a short last batch trains on a view of it
+        int size = fitStates.size();
+        batchLabels.data().setData(labelBuffer);
+        batch.setFeatures(0, fitStates.array());
+        batch.setLabels(0, size == batchSize ? batchLabels : batchLabels.get(NDArrayIndex.interval(0, size), NDArrayIndex.all()));
+        try (MemoryWorkspace ignored = Nd4j.getWorkspaceManager().getAndActivateWorkspace(WORKSPACE, FIT)) {
+            network.fit(batch);
+        }
+        if (cache != null)
+            cache.clear();
+        fitStates.clear();
+    }
+
+    public void setFitInterval(int fitInterval) {
+        if (fitInterval < 1)
+            throw new IllegalArgumentException();
+        this.fitInterval = fitInterval;
+    }
+
+    public void setCacheCapacity(int capacity) {
+        // 0 turns the cache off
+        cache = capacity == 0 ? null : new InferenceCache(capacity);
+    }
+
+    public InferenceCache getCache() {
+        return cache;
+    }
+
+    public void setRefreshInterval(int refreshInterval) {
+        if (refreshInterval < 1)
+            throw new IllegalArgumentException();
+        this.refreshInterval = refreshInterval;
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException();
+        this.batchSize = batchSize;
+        allocateBatch();
+    }
+
+    private void allocateBatch() {
+        if (fitStates != null) {
+            fitStates.close();
+            batchLabels.close();
         }
+        fitStates = new StateBatch(batchSize);
+        labelBuffer = new float[batchSize * 4];
+        batchLabels = Nd4j.create(DataType.FLOAT, batchSize, 4);
+    }
+
+    public void setParallelGames(int parallelGames) {
+        if (parallelGames < 1)
+            throw new IllegalArgumentException();
+        this.parallelGames = parallelGames;
+    }
+
+    public void setRolloutTargets(MonteCarloAI rollouts) {
+        this.rollouts = rollouts;
+    }
+
+    private static float max(float[] values) {
+        float max = values[0];
+        for (int i = 1; i < values.length; i++)
+            max = Math.max(max, values[i]);
+        return max;
+    }
+
+    private static float[] rolloutLabels(float[] targets) {
+        // Mean score gained to the end of the game on the same log scale as doForward, 0 for illegal moves
+        float[] labels = new float[4];
+        for (int i = 0; i < 4; i++)
+            if (targets[i] != Float.NEGATIVE_INFINITY)
+                labels[i] = (float) (Math.log1p(targets[i]) * 0.02);
+        return labels;
     }
 
     public void saveModel(String path) throws IOException {
         ModelSerializer.writeModel(network, path, false);
     }
 
-    public MoveDirection[] getMoveLow(Simple2048 game) {
-        INDArray inputs = Nd4j.createFromArray(serializeState(game)).reshape(1, 4, 4, 16);
-        INDArray output = network.output(inputs)[0];
-        float[] values = output.toFloatVector();
-        inputs.close();
-        output.close();
-        MoveDirection[] directions = MoveDirection.values();
-        for (int i = 0; i < 4; i++)
-            for (int j = i + 1; j < 4; j++)
-                if (values[i] > values[j]) {
-                    ArrayUtils.swap(values, i, j);
-                    ArrayUtils.swap(directions, i, j);
-                }
-        return directions;
-    }
-
-    private void doForward(float[] labels, long prevScore, long prevMax, long prevSpare, LongList mergeList, int inputDirection, Simple2048 game) {
-        long maxValue = game.getMaxValue();
-        long spareCount = game.getSpareCount() - prevSpare + 1;
-        long score = game.getScore() - prevScore;
-        if (game.checkContinue()) {
-            labels[inputDirection] = (float) (Math.log(maxValue) * 0.02);
-            if (mergeList.size() > 0) {
-                labels[inputDirection] += mergeList.size() * 0.025f;
-                labels[inputDirection] += (float) (Math.log(mergeList.longStream().max().orElse(1)) * 0.01);
-            }
-            INDArray inputs = Nd4j.createFromArray(serializeState(game)).reshape(1, 4, 4, 16);
-            INDArray output = network.output(inputs)[0];
-            float max = output.maxNumber().floatValue();
-            labels[inputDirection] += gamma * max;
-            inputs.close();
-            output.close();
-        } else
-            labels[inputDirection] = 0;
+    @Override
+    public MoveDirection[] getMoveLow(Game2048 game) {
+        // With the cache on, symmetric boards share one network call: a miss evaluates the board itself
+        // and stores the values turned to the canonical board, only a hit uses a mirrored evaluation
+        long board = Bitboard2048.boardOf(game);
+        if (cache == null)
+            return Game2048AI.orderByValue(evaluate(board));
+        Symmetry symmetry = Bitboard2048.canonicalSymmetry(board);
+        long canonical = Bitboard2048.transform(board, symmetry);
+        float[] values = cache.get(canonical, symmetry);
+        if (values == null) {
+            values = evaluate(board);
+            cache.put(canonical, InferenceCache.orient(values, symmetry.inverse()));
+        }
+        return Game2048AI.orderByValue(values);
+    }
+
+    private float[] evaluate(long board) {
+        moveStates.clear();
+        moveStates.add(board);
+        INDArray inputs = moveStates.array();
+        try (MemoryWorkspace workspace = Nd4j.getWorkspaceManager().getAndActivateWorkspace(WORKSPACE, INFERENCE)) {
+            return network.output(false, workspace, inputs)[0].toFloatVector();
+        }
     }
 
     private void test() {
+        test(this);
+    }
+
+    public static void test(Game2048AI ai) {
         long max = 0;
         int maxSteps = 0;
         long maxVal = 0;
@@ -258,12 +534,14 @@ public class QLearning {
         for (int i = 0; i < 1000; i++) {
             if (i % 100 == 0)
                 System.out.println(i);
-            Simple2048 game = new Simple2048(4);
+            Game2048 game = new Bitboard2048();
             int steps = 0;
             while (game.checkContinue()) {
-                MoveDirection[] direction = getMoveLow(game);
+                MoveDirection[] direction = ai.getMoveLow(game);
+                int legal = game.legalMoves();
                 for (int j = 3; j >= 0; j--)
-                    if (game.doMove(direction[j])) {
+                    if ((legal & direction[j].mask()) != 0) {
+                        game.doMove(direction[j]);
                         steps++;
                         break;
                     }
@@ -281,15 +559,256 @@ public class QLearning {
             System.out.println(Math.pow(2, i) + ": " + count[i]);
     }
 
-    public static void main(String[] args) throws IOException {
-        QLearning qLearning = new QLearning(0.5f, 0.9f, 1e-4f, 2000);
+    public static void main(String[] args) throws IOException, InterruptedException {
+        // No arguments: train on this thread, <actors>: train with that many actor threads,
+        // learner <ring file>: train from the ring, worker <ring file>: self-play into the ring for that learner
+        // Start the learner and the workers in the same directory, they share model.zip
+        Path model = Path.of("model.zip");
+        String mode = args.length > 0 ? args[0] : "";
+        if (mode.equals("worker")) {
+            QLearning worker = Files.exists(model) ? new QLearning(0.5f, 0.9f, 1, model.toString())
+                    : new QLearning(0.5f, 0.9f, 1e-4f, 1);
+            worker.setParallelGames(4);
+            try (ExperienceRing ring = new ExperienceRing(Path.of(args[1]), ExperienceRing.DEFAULT_CAPACITY)) {
+                worker.actInto(ring, model, 1000, 0.995f);
+            }
+            return;
+        }
+        QLearning qLearning = new QLearning(0.5f, 0.9f, 1e-4f, 1 << 20);
+        qLearning.setParallelGames(4);
+        qLearning.setFitInterval(2000);
+        int actors = mode.isEmpty() || mode.equals("learner") ? 0 : Integer.parseInt(mode);
         System.out.println("Start");
-        for (int i = 0; i < 100000; i++) {
-            System.out.println("Epoch: " + i);
-            qLearning.train(20, 1000, 0.995f);
-            qLearning.saveModel("model.zip");
+        try (ExperienceRing ring = mode.equals("learner") ?
+                new ExperienceRing(Path.of(args[1]), ExperienceRing.DEFAULT_CAPACITY) : null) {
+            for (int i = 0; i < 100000; i++) {
+                System.out.println("Epoch: " + i);
+                if (ring != null)
+                    qLearning.trainFromRing(ring, 100000, model);
+                else if (actors > 0)
+                    qLearning.trainParallel(actors, 100000, 1000, 0.995f);
+                else
+                    qLearning.train(20, 1000, 0.995f);
+                qLearning.saveModelAtomically(model);
+            }
         }
         QLearning qLearning2 = new QLearning(0.9f, 0.1f, 2000, "model.zip");
         qLearning2.test();
     }
+
+    @FunctionalInterface
+    private interface TransitionSink {
+
+        void add(long board, float[] labels);
+    }
+
+    @FunctionalInterface
+    private interface TransitionSource {
+
+        // Moves the available transitions into the replay memory, waiting a little for some if asked to
+        int drainTo(boolean wait) throws InterruptedException;
+    }
+
+    private static final class Transition {
+
+        private final long board;
+        private final float[] labels;
+
+        private Transition(long board, float[] labels) {
+            this.board = board;
+            this.labels = labels;
+        }
+    }
+
+    private final class SelfPlay {
+
+        // Plays up to `parallel` games side by side with the given network, gameLimit games in all
+        // Every step evaluates all the states the labels need, the current states and the successors
+        // they bootstrap from, in one network call, then hands each game's transition to the sink
+        private final ComputationGraph network;
+        private final Random random;
+        // Labels come from these rollouts when set, MonteCarloAI evaluates one game at a time
+        private final MonteCarloAI rollouts;
+        private final Episode[] episodes;
+        // The current state and up to four successors per game
+        private final StateBatch states;
+        private final LongList mergeList = new LongArrayList();
+        private final long gameLimit;
+        private final int decreaseTimes;
+        private final float decreaseRate;
+        private float epsilon = QLearning.this.epsilon;
+        private long total;
+        private long started;
+        private int finished;
+        private int active;
+        private int maxSteps;
+        private long maxValue;
+
+        private SelfPlay(ComputationGraph network, Random random, MonteCarloAI rollouts, int parallel, long gameLimit,
+                         int decreaseTimes, float decreaseRate) {
+            this.network = network;
+            this.random = random;
+            this.rollouts = rollouts;
+            this.gameLimit = gameLimit;
+            this.decreaseTimes = decreaseTimes;
+            this.decreaseRate = decreaseRate;
+            episodes = new Episode[parallel];
+            for (int i = 0; i < parallel; i++)
+                episodes[i] = new Episode(newGame());
+            started = parallel;
+            active = parallel;
+            states = new StateBatch(parallel * 5);
+        }
+
+        private void step(TransitionSink sink) {
+            states.clear();
+            for (Episode episode : episodes) {
+                if (episode == null)
+                    continue;
+                Game2048 game = episode.game;
+                episode.steps++;
+                total++;
+                episode.board = Bitboard2048.boardOf(game);
+                Arrays.fill(episode.rewards, 0);
+                Arrays.fill(episode.successorRows, -1);
+
+                float[] targets = rollouts == null ? null : rollouts.evaluate(game);
+                if (targets == null) {
+                    episode.labels = null;
+                    episode.currentRow = states.add(episode.board);
+                } else {
+                    episode.labels = rolloutLabels(targets);
+                    episode.currentRow = -1;
+                }
+
+                // The game continues, so at least one move is legal
+                episode.legal = game.legalMoves();
+                if (random.nextFloat() < epsilon) {
+                    episode.action = Bits.select(episode.legal, random.nextInt(Integer.bitCount(episode.legal)));
+                    if (targets == null)
+                        expand(episode, episode.action);
+                    else
+                        game.doMove(MoveDirection.values()[episode.action]);
+                } else if (targets != null) {
+                    episode.action = Game2048AI.orderByValue(targets)[3].ordinal();
+                    game.doMove(MoveDirection.values()[episode.action]);
+                } else {
+                    // Every legal successor is kept, the move is picked once the network has seen the current state
+                    episode.action = -1;
+                    game.saveTo(episode.snapshots, 0);
+                    for (int moves = episode.legal; moves != 0; moves &= moves - 1) {
+                        int direction = Integer.numberOfTrailingZeros(moves);
+                        game.restoreFrom(episode.snapshots, 0);
+                        expand(episode, direction);
+                        game.saveTo(episode.snapshots, (direction + 1) * episode.snapshotSize);
+                    }
+                }
+
+                if (total % decreaseTimes == 0)
+                    epsilon *= decreaseRate;
+            }
+
+            float[][] values = states.size() == 0 ? null : output();
+            for (int i = 0; i < episodes.length; i++) {
+                Episode episode = episodes[i];
+                if (episode == null)
+                    continue;
+                if (episode.currentRow >= 0)
+                    finishStep(episode, values);
+                sink.add(episode.board, episode.labels);
+
+                if (!episode.game.checkContinue()) {
+                    finished++;
+                    if (episode.steps > maxSteps)
+                        maxSteps = episode.steps;
+                    if (episode.game.getMaxValue() > maxValue)
+                        maxValue = episode.game.getMaxValue();
+                    if (started < gameLimit) {
+                        episodes[i] = new Episode(newGame());
+                        started++;
+                    } else {
+                        episodes[i] = null;
+                        active--;
+                    }
+                }
+            }
+        }
+
+        private Game2048 newGame() {
+            Game2048 game = new Bitboard2048();
+            int rotate = random.nextInt(4);
+            for (int j = 0; j < rotate; j++)
+                game.rotateRight();
+            return game;
+        }
+
+        private void expand(Episode episode, int direction) {
+            // Plays the move and keeps the reward part of its label, a successor that can continue
+            // joins the batch to bootstrap from
+            Game2048 game = episode.game;
+            game.doMove(MoveDirection.values()[direction], mergeList);
+            if (game.checkContinue()) {
+                float reward = (float) (Math.log(game.getMaxValue()) * 0.02);
+                if (mergeList.size() > 0) {
+                    reward += mergeList.size() * 0.025f;
+                    reward += (float) (Math.log(mergeList.longStream().max().orElse(1)) * 0.01);
+                }
+                episode.rewards[direction] = reward;
+                episode.successorRows[direction] = states.add(game);
+            }
+            mergeList.clear();
+        }
+
+        private void finishStep(Episode episode, float[][] values) {
+            // Labels are the network values of the current state with the played moves replaced
+            // by their reward plus the discounted best value of the successor, illegal moves get 0
+            float[] labels = values[episode.currentRow];
+            if (episode.action < 0) {
+                MoveDirection[] dirs = Game2048AI.orderByValue(labels);
+                for (int j = 3; j >= 0; j--)
+                    if ((episode.legal & dirs[j].mask()) != 0) {
+                        episode.game.restoreFrom(episode.snapshots, (dirs[j].ordinal() + 1) * episode.snapshotSize);
+                        break;
+                    }
+            }
+            for (int direction = 0; direction < 4; direction++) {
+                if (episode.action >= 0 && direction != episode.action)
+                    continue;
+                int row = episode.successorRows[direction];
+                labels[direction] = episode.rewards[direction] + (row < 0 ? 0 : gamma * max(values[row]));
+            }
+            episode.labels = labels;
+        }
+
+        private float[][] output() {
+            INDArray inputs = states.array();
+            try (MemoryWorkspace workspace = Nd4j.getWorkspaceManager().getAndActivateWorkspace(WORKSPACE, INFERENCE)) {
+                return network.output(false, workspace, inputs)[0].toFloatMatrix();
+            }
+        }
+    }
+
+    private static final class Episode {
+
+        // One running game of a SelfPlay and what its current step needs until the batch is evaluated
+        private final Game2048 game;
+        private final int snapshotSize;
+        // The state before the step at 0, the successor of each direction after it
+        private final long[] snapshots;
+        private final float[] rewards = new float[4];
+        private final int[] successorRows = new int[4];
+        private int steps;
+        private long board;
+        private float[] labels;
+        private int currentRow;
+        private int legal;
+        // The move played this step, -1 while the greedy move waits for the network
+        private int action;
+
+        private Episode(Game2048 game) {
+            this.game = game;
+            snapshotSize = game.snapshotSize();
+            snapshots = new long[snapshotSize * 5];
+        }
+    }
 }
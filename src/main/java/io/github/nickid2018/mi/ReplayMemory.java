@@ -0,0 +1,50 @@
+package io.github.nickid2018.mi;
+
+import java.util.random.RandomGenerator;
+
+public class ReplayMemory {
+
+    // Ring buffer of 4x4 transitions: the board packed as in Bitboard2048 and its four labels
+    // Once full, every new transition overwrites the oldest one
+    private final long[] boards;
+    private final float[] labels;
+    private long added;
+
+    public ReplayMemory(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException();
+        boards = new long[capacity];
+        labels = new float[capacity * 4];
+    }
+
+    public int capacity() {
+        return boards.length;
+    }
+
+    public int size() {
+        return (int) Math.min(added, boards.length);
+    }
+
+    public long added() {
+        return added;
+    }
+
+    public void add(long board, float[] labels) {
+        int slot = (int) (added++ % boards.length);
+        boards[slot] = board;
+        System.arraycopy(labels, 0, this.labels, slot * 4, 4);
+    }
+
+    public int sample(RandomGenerator random) {
+        // A uniformly random slot among the stored transitions
+        return random.nextInt(size());
+    }
+
+    public long board(int slot) {
+        return boards[slot];
+    }
+
+    public void labels(int slot, float[] buffer, int offset) {
+        System.arraycopy(labels, slot * 4, buffer, offset, 4);
+    }
+}
@@ -0,0 +1,92 @@
+package io.github.nickid2018.mi;
+
+public final class RowTransitionTable {
+
+    // Every packed 4-cell row of exponents maps to one entry:
+    // bits 0-15 row moved left, bits 16-31 row moved right, bits 32-48 score gained,
+    // bits 49-52 largest merged exponent, bits 53-54 merge count,
+    // bits 55-62 merged exponents in left-to-right order (one nibble each)
+    public static final int ROW_COUNT = 1 << 16;
+
+    private static final long[] TABLE = new long[ROW_COUNT];
+
+    static {
+        // Built on first use of the class, the JVM guarantees it happens once
+        for (int row = 0; row < ROW_COUNT; row++)
+            TABLE[row] = computeEntry(row);
+    }
+
+    private RowTransitionTable() {
+    }
+
+    public static long entry(int row) {
+        return TABLE[row];
+    }
+
+    public static int left(long entry) {
+        return (int) entry & 0xFFFF;
+    }
+
+    public static int right(long entry) {
+        return (int) (entry >>> 16) & 0xFFFF;
+    }
+
+    public static int score(long entry) {
+        return (int) (entry >>> 32) & 0x1FFFF;
+    }
+
+    public static int maxMergedExponent(long entry) {
+        return (int) (entry >>> 49) & 0xF;
+    }
+
+    public static int mergeCount(long entry) {
+        return (int) (entry >>> 53) & 0x3;
+    }
+
+    public static int mergedExponent(long entry, int index) {
+        return (int) (entry >>> (55 + index * 4)) & 0xF;
+    }
+
+    private static long computeEntry(int row) {
+        int last = 0;
+        int score = 0;
+        int maxMerged = 0;
+        int mergeCount = 0;
+        int merged = 0;
+        for (int index = 0; index < Bitboard2048.SIZE; index++) {
+            int value = (row >>> (index * 4)) & 0xF;
+            if (last != 0 && last == value && last != Bitboard2048.MAX_EXPONENT) {
+                score += 1 << (value + 1);
+                maxMerged = Math.max(maxMerged, value + 1);
+                merged |= (value + 1) << (mergeCount * 4);
+                mergeCount++;
+                last = 0;
+            } else if (value != 0)
+                last = value;
+        }
+        // Moving right is moving the mirrored row left, the merges found are the same
+        int left = moveLeft(row);
+        int right = Bitboard2048.reverseRow(moveLeft(Bitboard2048.reverseRow(row)));
+        return left | (long) right << 16 | (long) score << 32 | (long) maxMerged << 49
+                | (long) mergeCount << 53 | (long) merged << 55;
+    }
+
+    private static int moveLeft(int row) {
+        int left = 0;
+        int nowPosition = 0;
+        int last = 0;
+        for (int index = 0; index < Bitboard2048.SIZE; index++) {
+            int value = (row >>> (index * 4)) & 0xF;
+            if (last != 0 && last == value && last != Bitboard2048.MAX_EXPONENT) {
+                int shift = (nowPosition - 1) * 4;
+                left = (left & ~(0xF << shift)) | ((value + 1) << shift);
+                last = 0;
+            } else if (value != 0) {
+                left |= value << (nowPosition * 4);
+                last = value;
+                nowPosition++;
+            }
+        }
+        return left;
+    }
+}
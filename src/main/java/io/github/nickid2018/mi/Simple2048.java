@@ -2,67 +2,123 @@ package io.github.nickid2018.mi;
 
 import it.unimi.dsi.fastutil.longs.LongList;
 
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Random;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.function.Function;
-import java.util.stream.IntStream;
-import java.util.stream.LongStream;
-
-public class Simple2048 {
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
+
+public class Simple2048 implements Game2048 {
 
     private final int size;
     private final long[][] table;
-    private final Random random = new Random();
-    private final int[] valueSpared;
-    private int spareCount;
+    private RandomGenerator random;
+    // Copies take their randoms from this seed and a counter instead of drawing from random
+    private final long copySeed;
+    private long copies;
+    // Bit (row * size + column) is set when the cell is empty
+    private long spareCells;
+    // Cached legalMoves(), -1 after any cell changes
+    private int legalMoves = -1;
     private long maxValue;
     private long score;
     private MoveEventListener moveListener;
     private StayEventListener stayListener;
     private SpawnEventListener spawnListener;
+    private MoveRecordListener moveRecordListener;
+    private MoveRecord record;
+    private StepEventListener stepListener;
+    // The tile placed by the last spawn, for the step listener
+    private int spawnSlot;
+    private long spawnValue;
 
     public Simple2048(int size) {
+        this(size, new SplittableRandom());
+    }
+
+    public Simple2048(int size, long seed) {
+        // The same seed and the same moves always replay the same game
+        this(size, new SplittableRandom(seed), seed, true);
+    }
+
+    public Simple2048(int size, RandomGenerator random) {
+        this(size, random, random.nextLong(), true);
+    }
+
+    private Simple2048(int size, RandomGenerator random, long copySeed, boolean spawn) {
         if (size > 8 || size < 3)
             throw new IllegalArgumentException();
         this.size = size;
+        this.random = random;
+        this.copySeed = copySeed;
         table = new long[size][size];
         score = 0;
-        int[] valueSpared = new int[spareCount = size * size];
-        for (int i = 0; i < size * size; i++)
-            valueSpared[i] = i;
-        this.valueSpared = valueSpared;
-        spawnRandomValue();
-        spawnRandomValue();
+        spareCells = size == 8 ? -1L : (1L << (size * size)) - 1;
+        if (spawn) {
+            spawnRandomValue();
+            spawnRandomValue();
+        }
     }
 
+    @Override
     public MoveEventListener getMoveListener() {
         return moveListener;
     }
 
+    @Override
     public void setMoveListener(MoveEventListener moveListener) {
         this.moveListener = moveListener;
     }
 
+    @Override
     public StayEventListener getStayListener() {
         return stayListener;
     }
 
+    @Override
     public void setStayListener(StayEventListener stayListener) {
         this.stayListener = stayListener;
     }
 
+    @Override
     public SpawnEventListener getSpawnListener() {
         return spawnListener;
     }
 
+    @Override
     public void setSpawnListener(SpawnEventListener spawnListener) {
         this.spawnListener = spawnListener;
     }
 
+    @Override
+    public MoveRecordListener getMoveRecordListener() {
+        return moveRecordListener;
+    }
+
+    @Override
+    public void setMoveRecordListener(MoveRecordListener moveRecordListener) {
+        this.moveRecordListener = moveRecordListener;
+        record = moveRecordListener == null ? null : new MoveRecord(size * size);
+    }
+
+    @Override
+    public StepEventListener getStepListener() {
+        return stepListener;
+    }
+
+    @Override
+    public void setStepListener(StepEventListener stepListener) {
+        this.stepListener = stepListener;
+    }
+
+    @Override
+    public RandomGenerator getRandom() {
+        return random;
+    }
+
+    @Override
+    public void setRandom(RandomGenerator random) {
+        this.random = random;
+    }
+
+    @Override
     public void reset() {
         clear();
         spawnRandomValue();
@@ -73,41 +129,47 @@ public class Simple2048 {
         for (int row = 0; row < size; row++)
             for (int column = 0; column < size; column++)
                 set(row, column, 0);
-        for (int i = 0; i < size * size; i++)
-            valueSpared[i] = i;
-        spareCount = size * size;
         score = 0;
         maxValue = 0;
     }
 
+    @Override
     public long getMaxValue() {
         return maxValue;
     }
 
+    @Override
     public long getScore() {
         return score;
     }
 
+    @Override
     public void setScore(long score) {
         this.score = score;
     }
 
+    @Override
     public boolean doMove(MoveDirection direction) {
-        boolean success = internalMove(direction, null);
-        if (success)
-            // If moved successfully, spawn new value
-            spawnRandomValue();
-        return success;
+        return doMove(direction, null);
     }
 
+    @Override
     public boolean doMove(MoveDirection direction, LongList merges) {
+        if (record != null)
+            record.clear(direction);
         boolean success = internalMove(direction, merges);
-        if (success)
+        if (success) {
             // If moved successfully, spawn new value
             spawnRandomValue();
+            if (moveRecordListener != null)
+                moveRecordListener.moved(record);
+            if (stepListener != null)
+                stepListener.step(direction, spawnSlot, spawnValue);
+        }
         return success;
     }
 
+    @Override
     public int fromLineToSlot(int line, int index, MoveDirection direction) {
         return switch (direction) {
             case UP -> index * size + line;
@@ -119,153 +181,153 @@ public class Simple2048 {
 
     public boolean internalMove(MoveDirection direction, LongList merges) {
         boolean success = false;
-        // Re-calculate spare count
-        spareCount = 0;
-        for (int line = 0; line < size; line++) {
-            int finalLine = line;  // Effective final statement (lambda restricted)
-            success |= calculateSingleWithDirection(line, direction, stream -> {
-                // Module to handle moving
-                // Stream: First->Last = bottom moving->top moving
-                LongArrayStream outStream = new LongArrayStream(size);
-                AtomicInteger nowPosition = new AtomicInteger(0);
-                AtomicInteger lastIndex = new AtomicInteger(0);
-                AtomicBoolean moved = new AtomicBoolean(false);
-                AtomicLong lastNumber = new AtomicLong(0);
-                stream.accept((index, value) -> {
-                    long last = lastNumber.get();
-                    if (last != 0 && last == value) {
-                        // If last value isn't 0 (Condition: Merged or first element)
-                        // and the value equals last value, merge them and set last value to 0
-                        long result = outStream.set(nowPosition.get() - 1, last + value);
-                        score += result;
-                        if (merges != null)
-                            merges.add(result);
-                        if (result > maxValue)
-                            maxValue = result;
-                        if (moveListener != null) {
-                            moveListener.move(finalLine, lastIndex.get(), nowPosition.get() - 1, direction, value, result);
-                            moveListener.move(finalLine, index, nowPosition.get() - 1, direction, value, result);
-                        }
-                        lastNumber.set(0);
-                        moved.set(true);
-                    } else if (value != 0) {
-                        // If the value is 0, ignore it
-                        // Otherwise, add it to the result
-                        lastNumber.set(value);
-                        outStream.set(nowPosition.get(), value);
-                        if (moved.get() && moveListener != null)
-                            moveListener.move(finalLine, index, nowPosition.get(), direction, value, value);
-                        if (!moved.get() && stayListener != null)
-                            stayListener.stay(finalLine, index, direction);
-                        lastIndex.set(index);
-                        nowPosition.incrementAndGet();
-                    } else
-                        moved.set(true);
-                });
-                // Update values
-                supplyNewDataWithDirection(finalLine, direction, outStream);
-                // If the result equals the input, the operation in this line is invalid
-                return !outStream.equals(stream);
-            });
-        }
+        for (int line = 0; line < size; line++)
+            success |= moveLine(line, direction, merges);
         return success;
     }
 
-    public boolean checkContinue() {
-        if (spareCount > 0)
-            return true;
+    private boolean moveLine(int line, MoveDirection direction, LongList merges) {
+        // Module to handle moving
+        // Index: First->Last = bottom moving->top moving
+        // The result never gets ahead of the index being read, so the line is rewritten in place
+        int nowPosition = 0;
+        int lastIndex = 0;
+        long lastNumber = 0;
+        boolean moved = false;
+        boolean changed = false;
+        for (int index = 0; index < size; index++) {
+            long value = getInLine(line, index, direction);
+            if (lastNumber != 0 && lastNumber == value) {
+                // If last value isn't 0 (Condition: Merged or first element)
+                // and the value equals last value, merge them and set last value to 0
+                long result = lastNumber + value;
+                setInLine(line, nowPosition - 1, direction, result);
+                setInLine(line, index, direction, 0);
+                score += result;
+                if (merges != null)
+                    merges.add(result);
+                if (result > maxValue)
+                    maxValue = result;
+                if (moveListener != null) {
+                    moveListener.move(line, lastIndex, nowPosition - 1, direction, value, result);
+                    moveListener.move(line, index, nowPosition - 1, direction, value, result);
+                }
+                if (record != null)
+                    record.merge(fromLineToSlot(line, index, direction), result);
+                lastNumber = 0;
+                moved = true;
+                changed = true;
+            } else if (value != 0) {
+                // If the value is 0, ignore it
+                // Otherwise, add it to the result
+                lastNumber = value;
+                if (nowPosition != index) {
+                    setInLine(line, nowPosition, direction, value);
+                    setInLine(line, index, direction, 0);
+                    changed = true;
+                }
+                if (moved && moveListener != null)
+                    moveListener.move(line, index, nowPosition, direction, value, value);
+                if (!moved && stayListener != null)
+                    stayListener.stay(line, index, direction);
+                if (record != null)
+                    record.add(fromLineToSlot(line, index, direction), fromLineToSlot(line, nowPosition, direction), value);
+                lastIndex = index;
+                nowPosition++;
+            } else
+                moved = true;
+        }
+        // If nothing moved or merged, the operation in this line is invalid
+        return changed;
+    }
+
+    private long getInLine(int line, int index, MoveDirection direction) {
+        return switch (direction) {
+            case UP -> table[index][line];
+            case DOWN -> table[size - 1 - index][line];
+            case LEFT -> table[line][index];
+            case RIGHT -> table[line][size - 1 - index];
+        };
+    }
+
+    private void setInLine(int line, int index, MoveDirection direction, long value) {
+        switch (direction) {
+            case UP -> set(index, line, value);
+            case DOWN -> set(size - 1 - index, line, value);
+            case LEFT -> set(line, index, value);
+            case RIGHT -> set(line, size - 1 - index, value);
+        }
+    }
+
+    @Override
+    public int legalMoves() {
+        if (legalMoves < 0)
+            legalMoves = computeLegalMoves();
+        return legalMoves;
+    }
+
+    private int computeLegalMoves() {
+        // One pass over the neighbours: an empty cell beside a tile allows moving towards it,
+        // two equal tiles allow moving both ways
+        int legal = 0;
         for (int row = 0; row < size; row++)
             for (int column = 0; column < size; column++) {
-                long value = get(row, column);
-                if (row != size - 1 && get(row + 1, column) == value)
-                    return true;
-                if (column != size - 1 && get(row, column + 1) == value)
-                    return true;
+                long value = table[row][column];
+                if (column != size - 1)
+                    legal |= pairMoves(value, table[row][column + 1], MoveDirection.LEFT, MoveDirection.RIGHT);
+                if (row != size - 1)
+                    legal |= pairMoves(value, table[row + 1][column], MoveDirection.UP, MoveDirection.DOWN);
             }
-        // When checked the table has neither spare area nor merge chance, the game is over
-        return false;
+        return legal;
     }
 
-    private void spawnRandomValue() {
-        if (spareCount == 0)
+    private static int pairMoves(long first, long second, MoveDirection towardsFirst, MoveDirection towardsSecond) {
+        if (first == 0)
+            return second == 0 ? 0 : towardsFirst.mask();
+        if (second == 0)
+            return towardsSecond.mask();
+        return first == second ? towardsFirst.mask() | towardsSecond.mask() : 0;
+    }
+
+    void spawnRandomValue() {
+        if (spareCells == 0)
             // It won't be invoked
             return;
-        int index = spareCount == 1 ? --spareCount : random.nextInt(--spareCount);  // Select random position
-        int at = valueSpared[index];
+        int at = Bits.select(spareCells, random.nextInt(Long.bitCount(spareCells)));  // Select random position
         int value = random.nextFloat() < 0.95f ? 2 : 4;
         if (value > maxValue)
             maxValue = value;
         set(at / size, at % size, value);  // 95% spawns 2, 5% spawns 4
-        System.arraycopy(valueSpared, index + 1, valueSpared, index, spareCount - index);  // Delete value has been spawned
-        valueSpared[spareCount] = 0;
         if (spawnListener != null)
             spawnListener.spawn(at / size, at % size, value);
+        spawnSlot = at;
+        spawnValue = value;
+        if (record != null)
+            record.spawn(at, value);
     }
 
-    private boolean calculateSingleWithDirection(int line, MoveDirection direction, Function<LongArrayStream, Boolean> calculator) {
-        // Get the stream of the line in certain direction
-        return switch (direction) {
-            case UP -> calculator.apply(LongArrayStream.of(getColumn(line)));
-            case DOWN -> calculator.apply(LongArrayStream.of(getColumn(line)).reverse());
-            case LEFT -> calculator.apply(LongArrayStream.of(getRow(line)));
-            case RIGHT -> calculator.apply(LongArrayStream.of(getRow(line)).reverse());
-        };
-    }
-
-    private void supplyNewDataWithDirection(int line, MoveDirection direction, LongArrayStream stream) {
-        // Update the line in certain direction
-        // Re-calculate the spare area
-        switch (direction) {
-            case UP -> {
-                fillColumn(line, 0);
-                stream.accept((index, value) -> {
-                    set(index, line, value);
-                    if (value == 0)
-                        valueSpared[spareCount++] = index * size + line;
-                });
-            }
-            case DOWN -> {
-                fillColumn(line, 0);
-                stream.accept((index, value) -> {
-                    set(size - index - 1, line, value);
-                    if (value == 0)
-                        valueSpared[spareCount++] = (size - index - 1) * size + line;
-                });
-            }
-            case LEFT -> {
-                fillRow(line, 0);
-                stream.accept((index, value) -> {
-                    set(line, index, value);
-                    if (value == 0)
-                        valueSpared[spareCount++] = line * size + index;
-                });
-            }
-            case RIGHT -> {
-                fillRow(line, 0);
-                stream.accept((index, value) -> {
-                    set(line, size - index - 1, value);
-                    if (value == 0)
-                        valueSpared[spareCount++] = (line + 1) * size - index - 1;
-                });
-            }
-        }
-    }
-
+    @Override
     public void set(int row, int column, long value) {
         table[row][column] = value;
+        legalMoves = -1;
+        long bit = 1L << (row * size + column);
+        spareCells = value == 0 ? spareCells | bit : spareCells & ~bit;
     }
 
+    @Override
     public void validate() {
-        spareCount = 0;
+        spareCells = 0;
+        legalMoves = -1;
         for (int i = 0; i < size; i++)
             for (int j = 0; j < size; j++) {
                 long now;
                 if ((now = get(i, j)) == 0)
-                    valueSpared[spareCount++] = i * size + j;
+                    spareCells |= 1L << (i * size + j);
                 maxValue = Math.max(maxValue, now);
             }
     }
 
+    @Override
     public long get(int row, int column) {
         return table[row][column];
     }
@@ -282,42 +344,92 @@ public class Simple2048 {
     }
 
     public void fillRow(int row, int value) {
-        Arrays.fill(table[row], value);
+        for (int i = 0; i < size; i++)
+            set(row, i, value);
     }
 
     public void fillColumn(int column, int value) {
         for (int i = 0; i < size; i++)
-            table[i][column] = value;
+            set(i, column, value);
     }
 
+    @Override
     public int size() {
         return size;
     }
 
+    @Override
     public int getSpareCount() {
-        return spareCount;
+        return Long.bitCount(spareCells);
     }
 
+    @Override
     public Simple2048 copy() {
-        Simple2048 copy = new Simple2048(size);
+        return copy(new SplittableRandom(Game2048.mix(copySeed, ++copies)));
+    }
+
+    @Override
+    public Simple2048 copy(RandomGenerator random) {
+        Simple2048 copy = new Simple2048(size, random, Game2048.mix(copySeed, ++copies), false);
         for (int i = 0; i < size; i++)
             System.arraycopy(table[i], 0, copy.table[i], 0, size);
         copy.maxValue = maxValue;
-        copy.spareCount = spareCount;
+        copy.spareCells = spareCells;
+        copy.legalMoves = legalMoves;
         copy.score = score;
-        System.arraycopy(valueSpared, 0, copy.valueSpared, 0, spareCount);
         return copy;
     }
 
-    public void rotateRight() {
-        long[][] copy = new long[size][size];
+    @Override
+    public int snapshotSize() {
+        return 2 + size * size;
+    }
+
+    @Override
+    public void saveTo(long[] buffer, int offset) {
+        buffer[offset] = score;
+        buffer[offset + 1] = maxValue;
+        for (int i = 0; i < size; i++)
+            System.arraycopy(table[i], 0, buffer, offset + 2 + i * size, size);
+    }
+
+    @Override
+    public void restoreFrom(long[] buffer, int offset) {
+        score = buffer[offset];
+        maxValue = buffer[offset + 1];
         for (int i = 0; i < size; i++)
-            System.arraycopy(table[i], 0, copy[i], 0, size);
+            for (int j = 0; j < size; j++)
+                set(i, j, buffer[offset + 2 + i * size + j]);
+    }
+
+    @Override
+    public void transform(Symmetry symmetry) {
+        // Swaps in place, then rebuilds the spare mask once
+        if (symmetry.isTranspose())
+            for (int i = 0; i < size; i++)
+                for (int j = i + 1; j < size; j++) {
+                    long tmp = table[i][j];
+                    table[i][j] = table[j][i];
+                    table[j][i] = tmp;
+                }
+        if (symmetry.isFlipHorizontal())
+            for (long[] row : table)
+                for (int j = 0; j < size / 2; j++) {
+                    long tmp = row[j];
+                    row[j] = row[size - 1 - j];
+                    row[size - 1 - j] = tmp;
+                }
+        if (symmetry.isFlipVertical())
+            for (int i = 0; i < size / 2; i++) {
+                long[] tmp = table[i];
+                table[i] = table[size - 1 - i];
+                table[size - 1 - i] = tmp;
+            }
+        spareCells = 0;
+        legalMoves = -1;
         for (int i = 0; i < size; i++)
             for (int j = 0; j < size; j++)
-                table[i][j] = copy[size - j - 1][i];
-        System.arraycopy(
-                IntStream.of(valueSpared).map(i -> (size - i % size - 1) * size + i / size).toArray(),
-                0, valueSpared, 0, spareCount);
+                if (table[i][j] == 0)
+                    spareCells |= 1L << (i * size + j);
     }
 }
@@ -0,0 +1,141 @@
+package io.github.nickid2018.mi;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
+
+public class Simple2048Batch {
+
+    // Structure of arrays over 4x4 games, each board packed as in Bitboard2048
+    // Slot i holds game ids[i], finished games stay until compact() is called
+    private final int capacity;
+    private final long[] boards;
+    private final long[] scores;
+    private final int[] ids;
+    private final long[] finished;
+    private final RandomGenerator random;
+    private int count;
+
+    public Simple2048Batch(int capacity) {
+        this(capacity, new SplittableRandom());
+    }
+
+    public Simple2048Batch(int capacity, long seed) {
+        this(capacity, new SplittableRandom(seed));
+    }
+
+    public Simple2048Batch(int capacity, RandomGenerator random) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException();
+        this.capacity = capacity;
+        this.random = random;
+        boards = new long[capacity];
+        scores = new long[capacity];
+        ids = new int[capacity];
+        finished = new long[maskLength(capacity)];
+        reset();
+    }
+
+    public static int maskLength(int capacity) {
+        return (capacity + 63) >>> 6;
+    }
+
+    public void reset() {
+        count = capacity;
+        Arrays.fill(scores, 0);
+        Arrays.fill(finished, 0);
+        for (int slot = 0; slot < capacity; slot++) {
+            boards[slot] = Bitboard2048.spawn(Bitboard2048.spawn(0, random), random);
+            ids[slot] = slot;
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public long getBoard(int slot) {
+        return boards[slot];
+    }
+
+    public long getScore(int slot) {
+        return scores[slot];
+    }
+
+    public int getId(int slot) {
+        return ids[slot];
+    }
+
+    public boolean isFinished(int slot) {
+        return (finished[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    public int step(int[] moves, long[] rewards, long[] gameOver) {
+        // moves[slot] is a MoveDirection ordinal, rewards get the score gained by each slot
+        // gameOver gets a bit for every slot that can't continue, the number of such slots is returned
+        // Finished slots and illegal moves gain nothing, an illegal move spawns nothing
+        Arrays.fill(gameOver, 0, maskLength(count), 0);
+        int over = 0;
+        for (int slot = 0; slot < count; slot++) {
+            long bit = 1L << slot;
+            if ((finished[slot >>> 6] & bit) != 0) {
+                rewards[slot] = 0;
+                gameOver[slot >>> 6] |= bit;
+                over++;
+                continue;
+            }
+            long board = boards[slot];
+            int move = moves[slot];
+            if (move < 0 || move > 3)
+                throw new IllegalArgumentException("Unknown move " + move);
+            // Same kernel for every direction so a random mix of moves doesn't defeat branch prediction:
+            // UP and DOWN (even ordinals) work on the transposed board, DOWN and RIGHT take the right move
+            boolean vertical = (move & 1) == 0;
+            int shift = (move & 2) << 3;
+            long transposed = Bitboard2048.transpose(board);
+            long source = vertical ? transposed : board;
+            long moved = 0;
+            long reward = 0;
+            for (int line = 0; line < 64; line += 16) {
+                long entry = RowTransitionTable.entry((int) (source >>> line) & 0xFFFF);
+                moved |= ((entry >>> shift) & 0xFFFF) << line;
+                reward += RowTransitionTable.score(entry);
+            }
+            long movedBack = Bitboard2048.transpose(moved);
+            long result = vertical ? movedBack : moved;
+            if (result != board) {
+                result = Bitboard2048.spawn(result, random);
+                boards[slot] = result;
+                scores[slot] += reward;
+            } else
+                reward = 0;
+            rewards[slot] = reward;
+            if (!Bitboard2048.canContinue(result)) {
+                finished[slot >>> 6] |= bit;
+                gameOver[slot >>> 6] |= bit;
+                over++;
+            }
+        }
+        return over;
+    }
+
+    public int compact() {
+        // Moves the running games to the front keeping their order, returns the new size
+        int alive = 0;
+        for (int slot = 0; slot < count; slot++) {
+            if ((finished[slot >>> 6] & (1L << slot)) != 0)
+                continue;
+            boards[alive] = boards[slot];
+            scores[alive] = scores[slot];
+            ids[alive] = ids[slot];
+            alive++;
+        }
+        Arrays.fill(finished, 0);
+        count = alive;
+        return alive;
+    }
+}
@@ -9,8 +9,8 @@ import java.awt.*;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.opengl.GL32.*;
@@ -58,12 +58,10 @@ public class Simple2048Renderer {
     private static boolean aiMode = false;
 
     // Game Properties ------------------------------
-    private static Simple2048 game;
-    private static MoveData[] moveData = new MoveData[16];
-    private static boolean[] stays = new boolean[16];
-    private static int spawnSlot = -1;
-    private static long spawnValue = 0;
-    private static QLearning qLearning;
+    private static Game2048 game;
+    // The game rewrites it on the next move, which waits until the animation is over
+    private static MoveRecord lastMove;
+    private static Game2048AI ai;
     private static Random random = new Random();
     private static int failedCounter = 0;
     private static int moveCounter = 0;
@@ -77,29 +75,27 @@ public class Simple2048Renderer {
         glViewport(0, 0, WINDOW_WIDTH, WINDOW_HEIGHT);
         glfwSetKeyCallback(windowHandle, Simple2048Renderer::keyCallback);
         glfwSwapInterval(VSYNC ? 1 : 0);
-        game = new Simple2048(4);
-        game.setMoveListener(Simple2048Renderer::moveListener);
-        game.setSpawnListener(Simple2048Renderer::spawnListener);
-        game.setStayListener(Simple2048Renderer::stayListener);
+        game = new Bitboard2048();
+        game.setMoveRecordListener(Simple2048Renderer::moveRecordListener);
         uploadTextures();
         compileShadersAndVAO();
-        qLearning = new QLearning(0.9f, 0.9f, 2000, "model.zip");
-    }
-
-    public static void moveListener(int line, int fromSlot, int endSlot, MoveDirection direction, long sourceData, long endData) {
-        int slotNow = game.fromLineToSlot(line, fromSlot, direction);
-        int slotTo = game.fromLineToSlot(line, endSlot, direction);
-        moveData[slotNow] = new MoveData(slotTo, sourceData, endData);
-        stays[slotTo] = false;
+        try {
+            ai = loadQLearning();
+        } catch (IOException e) {
+            // No trained model, search instead
+            ai = new ExpectimaxAI(ForkJoinPool.commonPool(), 50, 8);
+        }
     }
 
-    public static void spawnListener(int row, int column, long number) {
-        spawnSlot = row * game.size() + column;
-        spawnValue = number;
+    private static QLearning loadQLearning() throws IOException {
+        // Positions come back often in one game, mirrored ones share a cache entry
+        QLearning qLearning = new QLearning(0.9f, 0.9f, 2000, "model.zip");
+        qLearning.setCacheCapacity(1 << 16);
+        return qLearning;
     }
 
-    public static void stayListener(int line, int index, MoveDirection direction) {
-        stays[game.fromLineToSlot(line, index, direction)] = true;
+    public static void moveRecordListener(MoveRecord record) {
+        lastMove = record;
     }
 
     public static void keyCallback(long window, int key, int scancode, int action, int mods) {
@@ -108,23 +104,28 @@ public class Simple2048Renderer {
                 glfwSetWindowShouldClose(window, true);
             else if (key == GLFW_KEY_R) {
                 game.reset();
-                Arrays.fill(stays, false);
-                Arrays.fill(moveData, null);
                 if (gameOver)
                     gameOverAnimationFrame = -GAME_OVER_ANIMATION_FRAME;
                 gameOver = false;
                 animationFrame = 0;
             } else if (key == GLFW_KEY_KP_ADD)
                 try {
-                    qLearning = new QLearning(0.9f, 0.9f, 2000, "model.zip");
+                    ai = loadQLearning();
+                } catch (IOException ignored) {
+                }
+            else if (key == GLFW_KEY_E)
+                ai = new ExpectimaxAI(ForkJoinPool.commonPool(), 50, 8);
+            else if (key == GLFW_KEY_M)
+                ai = new MonteCarloAI(ForkJoinPool.commonPool(), 50, Integer.MAX_VALUE, random.nextLong());
+            else if (key == GLFW_KEY_N)
+                try {
+                    ai = NTupleAI.load("ntuple.bin");
                 } catch (IOException ignored) {
                 }
             else if (key == GLFW_KEY_A && !gameOver)
                 aiMode = !aiMode;
             else if (animationFrame == 0 && !gameOver && !aiMode) {
                 boolean moved = false;
-                Arrays.fill(stays, false);
-                Arrays.fill(moveData, null);
                 if (key == GLFW_KEY_UP)
                     moved = game.doMove(MoveDirection.UP);
                 else if (key == GLFW_KEY_DOWN)
@@ -145,8 +146,6 @@ public class Simple2048Renderer {
     }
 
     public static boolean onAIMove(MoveDirection m) {
-        Arrays.fill(stays, false);
-        Arrays.fill(moveData, null);
         boolean moved = game.doMove(m);
         if (moved) {
             animationFrame = ANIMATION_FRAME;
@@ -344,24 +343,25 @@ public class Simple2048Renderer {
 
     public static void renderAnimation() {
         glUseProgram(plainProgramID);
-        for (int i = 0; i < 16; i++)
-            if (stays[i]) {
-                long val = game.get(i / 4, i % 4);
+        for (int i = 0; i < lastMove.size(); i++)
+            if (lastMove.isStay(i)) {
+                long val = lastMove.getSource(i);
                 glBindVertexArray(gridVAO[(int) (Math.log(val) / Math.log(2)) - 1]);
                 glBindTexture(GL_TEXTURE_2D, gridTexture);
-                glUniformMatrix4fv(uniformMatrixPlain, false, gridTransform[i]);
+                glUniformMatrix4fv(uniformMatrixPlain, false, gridTransform[lastMove.getFromSlot(i)]);
                 glDrawElements(GL_TRIANGLES, 6, GL_UNSIGNED_INT, 0);
             }
         float progress = 1 - (animationFrame - ANIMATION_SPAWN) / (float) ANIMATION_MOVE;
         if (progress > 1)
             progress = 1;
-        for (int i = 0; i < 16; i++) {
-            MoveData move = moveData[i];
-            if (move == null)
+        for (int i = 0; i < lastMove.size(); i++) {
+            if (lastMove.isStay(i))
                 continue;
-            float x = toNDCX((i % 4) * 144 + 16) * (1 - progress) + toNDCX((move.toSlot() % 4) * 144 + 16) * progress;
-            float y = toNDCY(16 + (3 - i / 4) * 144) * (1 - progress) + toNDCY(16 + (3 - move.toSlot() / 4) * 144) * progress;
-            long val = progress > 0.5 ? move.result() : move.source();
+            int from = lastMove.getFromSlot(i);
+            int to = lastMove.getToSlot(i);
+            float x = toNDCX((from % 4) * 144 + 16) * (1 - progress) + toNDCX((to % 4) * 144 + 16) * progress;
+            float y = toNDCY(16 + (3 - from / 4) * 144) * (1 - progress) + toNDCY(16 + (3 - to / 4) * 144) * progress;
+            long val = progress > 0.5 ? lastMove.getResult(i) : lastMove.getSource(i);
             glBindVertexArray(gridVAO[(int) (Math.log(val) / Math.log(2)) - 1]);
             glBindTexture(GL_TEXTURE_2D, gridTexture);
             glUniformMatrix4fv(uniformMatrixPlain, false, new Matrix4f()
@@ -370,6 +370,8 @@ public class Simple2048Renderer {
                     .get(TRANSFER_ARRAY));
             glDrawElements(GL_TRIANGLES, 6, GL_UNSIGNED_INT, 0);
         }
+        int spawnSlot = lastMove.getSpawnSlot();
+        long spawnValue = lastMove.getSpawnValue();
         if (animationFrame < ANIMATION_SPAWN) {
             float spawnProgress = 1 - animationFrame / (float) ANIMATION_SPAWN;
             glBindVertexArray(gridVAO[(int) (Math.log(spawnValue) / Math.log(2)) - 1]);
@@ -551,7 +553,7 @@ public class Simple2048Renderer {
                 moveCounter = 0;
             }
             if (aiMode && !gameOver && animationFrame == 0) {
-                MoveDirection[] direction = qLearning.getMoveLow(game);
+                MoveDirection[] direction = ai.getMoveLow(game);
                 moveCounter++;
                 for (int i = 3; i >= 0; i--) {
                     if (onAIMove(direction[i])) {
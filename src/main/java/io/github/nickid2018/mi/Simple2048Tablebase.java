@@ -0,0 +1,336 @@
+package io.github.nickid2018.mi;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class Simple2048Tablebase implements Game2048AI, AutoCloseable {
+
+    // Optimal expected score to come and the best move for every 3x3 board with exponents up to maxExponent
+    // A board is indexed by its exponents read as a number in base maxExponent + 1, cell 0 lowest,
+    // which is a perfect hash over all boards (unreachable ones included)
+    // No 3x3 game can build a tile above 1024, so maxExponent 10 covers the whole game;
+    // smaller tables treat a merge past maxExponent as an illegal move
+    // The file holds a header, then one float value per board, then one move byte per board
+    public static final int SIZE = 3;
+    public static final int CELLS = SIZE * SIZE;
+    public static final int FULL_EXPONENT = 10;
+    public static final byte NO_MOVE = 4;
+    public static final float SPAWN_TWO = 0.95f;
+
+    private static final int MAGIC = 0x54423333;
+    private static final int HEADER = 16;
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+    // LINE_CELLS[direction][line][index] is the cell read index-th when the line slides towards index 0
+    private static final int[][][] LINE_CELLS = new int[4][SIZE][SIZE];
+
+    static {
+        for (MoveDirection direction : MoveDirection.values())
+            for (int line = 0; line < SIZE; line++)
+                for (int index = 0; index < SIZE; index++)
+                    LINE_CELLS[direction.ordinal()][line][index] = switch (direction) {
+                        case UP -> index * SIZE + line;
+                        case DOWN -> (SIZE - 1 - index) * SIZE + line;
+                        case LEFT -> line * SIZE + index;
+                        case RIGHT -> line * SIZE + SIZE - 1 - index;
+                    };
+    }
+
+    private final int maxExponent;
+    private final long count;
+    private final long[] powers = new long[CELLS];
+    // Every packed line of 3 nibbles slid towards nibble 0: moved line | score << 12, -1 when a merge overflows
+    private final int[] lines = new int[1 << (SIZE * 4)];
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+
+    private Simple2048Tablebase(FileChannel channel, int maxExponent, boolean writable) throws IOException {
+        this.channel = channel;
+        this.maxExponent = maxExponent;
+        long power = 1;
+        for (int i = 0; i < CELLS; i++) {
+            powers[i] = power;
+            power *= maxExponent + 1;
+        }
+        count = power;
+        for (int line = 0; line < lines.length; line++)
+            lines[line] = slideLine(line);
+        long length = HEADER + count * 5;
+        segments = new MappedByteBuffer[(int) ((length + SEGMENT_MASK) >>> SEGMENT_BITS)];
+        for (int i = 0; i < segments.length; i++) {
+            long start = (long) i << SEGMENT_BITS;
+            segments[i] = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                    start, Math.min(1L << SEGMENT_BITS, length - start));
+        }
+    }
+
+    public static Simple2048Tablebase open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+            if (header.getInt(0) != MAGIC)
+                throw new IOException("Not a 3x3 tablebase");
+            Simple2048Tablebase tablebase = new Simple2048Tablebase(channel, header.getInt(4), false);
+            if (channel.size() != HEADER + tablebase.count * 5)
+                throw new IOException("Truncated tablebase");
+            return tablebase;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public static Simple2048Tablebase generate(Path path, int maxExponent, ForkJoinPool pool) throws IOException {
+        // Retrograde: every turn adds a 2 or a 4, so the tile sum only grows and a board only depends on
+        // boards with a larger sum. Layers of equal sum are solved from the largest down, the boards
+        // of one layer are independent and split across the pool by their first two cells
+        if (maxExponent < 2 || maxExponent > FULL_EXPONENT)
+            throw new IllegalArgumentException("maxExponent must be in 2-" + FULL_EXPONENT);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            Simple2048Tablebase tablebase = new Simple2048Tablebase(channel, maxExponent, true);
+            for (int sum = CELLS << maxExponent; sum >= 0; sum -= 2) {
+                List<LayerTask> tasks = new ArrayList<>();
+                for (int first = 0; first <= maxExponent; first++)
+                    for (int second = 0; second <= maxExponent; second++)
+                        if (tileValue(first) + tileValue(second) <= sum)
+                            tasks.add(tablebase.new LayerTask(sum, first, second));
+                pool.invoke(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        invokeAll(tasks);
+                    }
+                });
+            }
+            MappedByteBuffer header = tablebase.segments[0];
+            header.putInt(0, MAGIC);
+            header.putInt(4, maxExponent);
+            for (MappedByteBuffer segment : tablebase.segments)
+                segment.force();
+            return tablebase;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int getMaxExponent() {
+        return maxExponent;
+    }
+
+    public long size() {
+        return count;
+    }
+
+    public long index(Game2048 game) {
+        if (game.size() != SIZE)
+            throw new IllegalArgumentException("Only 3x3 games are in the tablebase");
+        long index = 0;
+        for (int i = 0; i < CELLS; i++) {
+            long value = game.get(i / SIZE, i % SIZE);
+            int exponent = value == 0 ? 0 : Long.numberOfTrailingZeros(value);
+            if (exponent > maxExponent)
+                throw new IllegalArgumentException("Tile " + value + " is beyond the tablebase");
+            index += exponent * powers[i];
+        }
+        return index;
+    }
+
+    public float value(long index) {
+        return getFloat(HEADER + index * 4);
+    }
+
+    public float value(Game2048 game) {
+        return value(index(game));
+    }
+
+    public MoveDirection bestMove(Game2048 game) {
+        // null when the game is over
+        byte move = getByte(HEADER + count * 4 + index(game));
+        return move == NO_MOVE ? null : MoveDirection.values()[move];
+    }
+
+    public float value(Game2048 game, MoveDirection direction) {
+        // Expected score to come after playing the move, negative infinity if it isn't legal
+        // The gap to value(game) is what the move costs against perfect play
+        long moved = move(pack(index(game)), direction.ordinal());
+        return moved < 0 ? Float.NEGATIVE_INFINITY : (float) ((moved >>> 36) + expectation(moved & 0xFFFFFFFFFL));
+    }
+
+    @Override
+    public MoveDirection[] getMoveLow(Game2048 game) {
+        float[] values = new float[4];
+        for (MoveDirection direction : MoveDirection.values())
+            values[direction.ordinal()] = value(game, direction);
+        return Game2048AI.orderByValue(values);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void solve(long board) {
+        // board is packed one nibble per cell
+        float best = 0;
+        byte bestMove = NO_MOVE;
+        for (int direction = 0; direction < 4; direction++) {
+            long moved = move(board, direction);
+            if (moved < 0)
+                continue;
+            float value = (float) ((moved >>> 36) + expectation(moved & 0xFFFFFFFFFL));
+            if (bestMove == NO_MOVE || value > best) {
+                best = value;
+                bestMove = (byte) direction;
+            }
+        }
+        long index = indexOf(board);
+        putFloat(HEADER + index * 4, best);
+        putByte(HEADER + count * 4 + index, bestMove);
+    }
+
+    private double expectation(long board) {
+        // Mean over the spawn positions, a legal move always leaves one empty cell
+        long index = indexOf(board);
+        double sum = 0;
+        int empty = 0;
+        for (int cell = 0; cell < CELLS; cell++)
+            if ((board >>> (cell * 4) & 0xF) == 0) {
+                sum += SPAWN_TWO * value(index + powers[cell]) + (1 - SPAWN_TWO) * value(index + 2 * powers[cell]);
+                empty++;
+            }
+        return sum / empty;
+    }
+
+    private long move(long board, int direction) {
+        // Moved board | score << 36, -1 when the move changes nothing or overflows
+        long result = 0;
+        long score = 0;
+        int[][] cells = LINE_CELLS[direction];
+        for (int[] line : cells) {
+            int source = 0;
+            for (int index = 0; index < SIZE; index++)
+                source |= (int) (board >>> (line[index] * 4) & 0xF) << (index * 4);
+            int entry = lines[source];
+            if (entry < 0)
+                return -1;
+            for (int index = 0; index < SIZE; index++)
+                result |= (long) (entry >>> (index * 4) & 0xF) << (line[index] * 4);
+            score += entry >>> 12;
+        }
+        return result == board ? -1 : result | score << 36;
+    }
+
+    private int slideLine(int line) {
+        int out = 0;
+        int nowPosition = 0;
+        int last = 0;
+        int score = 0;
+        for (int index = 0; index < SIZE; index++) {
+            int value = (line >>> (index * 4)) & 0xF;
+            if (last != 0 && last == value) {
+                if (value == maxExponent)
+                    return -1;
+                int shift = (nowPosition - 1) * 4;
+                out = (out & ~(0xF << shift)) | ((value + 1) << shift);
+                score += 1 << (value + 1);
+                last = 0;
+            } else if (value != 0) {
+                out |= value << (nowPosition * 4);
+                last = value;
+                nowPosition++;
+            }
+        }
+        return out | score << 12;
+    }
+
+    private long indexOf(long board) {
+        long index = 0;
+        for (int cell = 0; cell < CELLS; cell++)
+            index += (board >>> (cell * 4) & 0xF) * powers[cell];
+        return index;
+    }
+
+    private long pack(long index) {
+        long board = 0;
+        for (int cell = 0; cell < CELLS; cell++) {
+            board |= index % (maxExponent + 1) << (cell * 4);
+            index /= maxExponent + 1;
+        }
+        return board;
+    }
+
+    private static int tileValue(int exponent) {
+        return exponent == 0 ? 0 : 1 << exponent;
+    }
+
+    private float getFloat(long position) {
+        return segments[(int) (position >>> SEGMENT_BITS)].getFloat((int) (position & SEGMENT_MASK));
+    }
+
+    private void putFloat(long position, float value) {
+        segments[(int) (position >>> SEGMENT_BITS)].putFloat((int) (position & SEGMENT_MASK), value);
+    }
+
+    private byte getByte(long position) {
+        return segments[(int) (position >>> SEGMENT_BITS)].get((int) (position & SEGMENT_MASK));
+    }
+
+    private void putByte(long position, byte value) {
+        segments[(int) (position >>> SEGMENT_BITS)].put((int) (position & SEGMENT_MASK), value);
+    }
+
+    @SuppressWarnings("serial")
+    private final class LayerTask extends RecursiveAction {
+
+        // Solves the boards whose tiles sum to sum and whose first two cells are fixed
+        private final int sum;
+        private final int first;
+        private final int second;
+
+        private LayerTask(int sum, int first, int second) {
+            this.sum = sum;
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        protected void compute() {
+            long board = first | (long) second << 4;
+            enumerate(board, 2, sum - tileValue(first) - tileValue(second));
+        }
+
+        private void enumerate(long board, int cell, int remaining) {
+            if (cell == CELLS) {
+                if (remaining == 0)
+                    solve(board);
+                return;
+            }
+            // The cells left after this one can hold at most this much
+            int capacity = (CELLS - 1 - cell) << maxExponent;
+            for (int exponent = 0; exponent <= maxExponent; exponent++) {
+                int left = remaining - tileValue(exponent);
+                if (left < 0)
+                    break;
+                if (left <= capacity)
+                    enumerate(board | (long) exponent << (cell * 4), cell + 1, left);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int maxExponent = args.length > 0 ? Integer.parseInt(args[0]) : FULL_EXPONENT;
+        long start = System.currentTimeMillis();
+        try (Simple2048Tablebase tablebase = generate(Path.of("tablebase3x3.bin"), maxExponent, ForkJoinPool.commonPool())) {
+            System.out.println("Solved " + tablebase.size() + " boards in " + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package io.github.nickid2018.mi;
+
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.concurrency.AffinityManager;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+import java.nio.FloatBuffer;
+
+public class StateBatch implements AutoCloseable {
+
+    // Network input for up to capacity 4x4 boards, shape [rows, 4, 4, 16]
+    // A row holds one plane per exponent for every cell, plane 0 marks an empty cell
+    // Boards are written straight into the off-heap buffer of one array that lives as long as the batch
+    // Those writes bypass ND4J, so array() marks the host copy as the newest one before the array is used,
+    // otherwise a CUDA backend would keep reading its stale device copy
+    private static final int ROW = 4 * 4 * 16;
+    private static final float[] EMPTY_ROW = new float[ROW];
+
+    private final INDArray array;
+    private final FloatBuffer buffer;
+    // Views of the first n rows, made once per n
+    private final INDArray[] views;
+    private int size;
+
+    public StateBatch(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException();
+        array = Nd4j.create(DataType.FLOAT, capacity, 4, 4, 16);
+        buffer = array.data().asNioFloat();
+        views = new INDArray[capacity + 1];
+        views[capacity] = array;
+    }
+
+    public int capacity() {
+        return views.length - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int add(long board) {
+        // Appends the board packed as in Bitboard2048 and returns its row
+        if (size == capacity())
+            throw new IllegalStateException("Batch is full");
+        set(size, board);
+        return size++;
+    }
+
+    public int add(Game2048 game) {
+        return add(Bitboard2048.boardOf(game));
+    }
+
+    public void set(int row, long board) {
+        int base = row * ROW;
+        buffer.put(base, EMPTY_ROW);
+        for (int cell = 0; cell < 16; cell++)
+            buffer.put(base + cell * 16 + (int) (board >>> (cell * 4) & 0xF), 1);
+    }
+
+    public INDArray array() {
+        // The added rows, backed by the same memory
+        Nd4j.getAffinityManager().tagLocation(array, AffinityManager.Location.HOST);
+        INDArray view = views[size];
+        if (view == null)
+            view = views[size] = array.get(NDArrayIndex.interval(0, size), NDArrayIndex.all(),
+                    NDArrayIndex.all(), NDArrayIndex.all());
+        return view;
+    }
+
+    @Override
+    public void close() {
+        array.close();
+    }
+}
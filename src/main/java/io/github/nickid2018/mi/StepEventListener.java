@@ -0,0 +1,8 @@
+package io.github.nickid2018.mi;
+
+@FunctionalInterface
+public interface StepEventListener {
+
+    // Called once after every successful doMove with the slot and value of the spawned tile
+    void step(MoveDirection direction, int spawnSlot, long spawnValue);
+}
@@ -0,0 +1,88 @@
+package io.github.nickid2018.mi;
+
+public enum Symmetry {
+
+    // Every symmetry of the square is an optional transpose followed by optional flips
+    IDENTITY(false, false, false),
+    ROTATE_RIGHT(true, true, false),
+    ROTATE_HALF(false, true, true),
+    ROTATE_LEFT(true, false, true),
+    TRANSPOSE(true, false, false),
+    ANTI_TRANSPOSE(true, true, true),
+    FLIP_HORIZONTAL(false, true, false),
+    FLIP_VERTICAL(false, false, true);
+
+    private static final Symmetry[] VALUES = values();
+
+    private final boolean transpose;
+    private final boolean flipHorizontal;
+    private final boolean flipVertical;
+
+    Symmetry(boolean transpose, boolean flipHorizontal, boolean flipVertical) {
+        this.transpose = transpose;
+        this.flipHorizontal = flipHorizontal;
+        this.flipVertical = flipVertical;
+    }
+
+    public static Symmetry of(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    public boolean isTranspose() {
+        return transpose;
+    }
+
+    public boolean isFlipHorizontal() {
+        return flipHorizontal;
+    }
+
+    public boolean isFlipVertical() {
+        return flipVertical;
+    }
+
+    public int apply(int size, int row, int column) {
+        // Slot that the cell (row, column) is moved to
+        if (transpose) {
+            int tmp = row;
+            row = column;
+            column = tmp;
+        }
+        if (flipHorizontal)
+            column = size - 1 - column;
+        if (flipVertical)
+            row = size - 1 - row;
+        return row * size + column;
+    }
+
+    public MoveDirection apply(MoveDirection direction) {
+        // A move on the original board is the returned move on the transformed board
+        if (transpose)
+            direction = switch (direction) {
+                case UP -> MoveDirection.LEFT;
+                case LEFT -> MoveDirection.UP;
+                case DOWN -> MoveDirection.RIGHT;
+                case RIGHT -> MoveDirection.DOWN;
+            };
+        if (flipHorizontal)
+            direction = switch (direction) {
+                case LEFT -> MoveDirection.RIGHT;
+                case RIGHT -> MoveDirection.LEFT;
+                default -> direction;
+            };
+        if (flipVertical)
+            direction = switch (direction) {
+                case UP -> MoveDirection.DOWN;
+                case DOWN -> MoveDirection.UP;
+                default -> direction;
+            };
+        return direction;
+    }
+
+    public Symmetry inverse() {
+        return switch (this) {
+            case ROTATE_RIGHT -> ROTATE_LEFT;
+            case ROTATE_LEFT -> ROTATE_RIGHT;
+            default -> this;
+        };
+    }
+}
@@ -0,0 +1,66 @@
+package io.github.nickid2018.mi;
+
+public class UndoStack {
+
+    // Ring of snapshots in one flat array, pushing onto a full stack drops the oldest state
+    private final Game2048 game;
+    private final int stateSize;
+    private final int capacity;
+    private final long[] states;
+    private final long[] pending;
+    private int top;
+    private int count;
+
+    public UndoStack(Game2048 game, int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException();
+        this.game = game;
+        this.capacity = capacity;
+        stateSize = game.snapshotSize();
+        states = new long[capacity * stateSize];
+        pending = new long[stateSize];
+    }
+
+    public void push() {
+        game.saveTo(states, top * stateSize);
+        advance();
+    }
+
+    private void advance() {
+        top = (top + 1) % capacity;
+        if (count < capacity)
+            count++;
+    }
+
+    public boolean undo() {
+        if (count == 0)
+            return false;
+        top = (top + capacity - 1) % capacity;
+        count--;
+        game.restoreFrom(states, top * stateSize);
+        return true;
+    }
+
+    public boolean doMove(MoveDirection direction) {
+        // The state is only pushed when the move is valid, so an invalid move never drops the oldest state
+        game.saveTo(pending, 0);
+        if (!game.doMove(direction))
+            return false;
+        System.arraycopy(pending, 0, states, top * stateSize, stateSize);
+        advance();
+        return true;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public void clear() {
+        top = 0;
+        count = 0;
+    }
+}
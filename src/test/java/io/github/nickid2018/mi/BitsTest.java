@@ -0,0 +1,28 @@
+package io.github.nickid2018.mi;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BitsTest {
+
+    @Test
+    void selectFindsEveryRank() {
+        SplittableRandom random = new SplittableRandom(1);
+        for (int i = 0; i < 10_000; i++) {
+            // Sparse, dense and uniform words
+            long value = switch (i % 3) {
+                case 0 -> random.nextLong() & random.nextLong() & random.nextLong();
+                case 1 -> random.nextLong() | random.nextLong();
+                default -> random.nextLong();
+            };
+            for (int rank = 0, bit = 0; bit < 64; bit++)
+                if ((value >>> bit & 1) != 0)
+                    assertEquals(bit, Bits.select(value, rank++), "Rank " + (rank - 1) + " of " + Long.toHexString(value));
+        }
+        assertEquals(63, Bits.select(Long.MIN_VALUE, 0));
+        assertEquals(63, Bits.select(-1L, 63));
+    }
+}
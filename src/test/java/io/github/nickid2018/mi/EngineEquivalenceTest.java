@@ -0,0 +1,143 @@
+package io.github.nickid2018.mi;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.junit.jupiter.api.Test;
+
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class EngineEquivalenceTest {
+
+    // Every engine is driven through the same boards and moves, spawns are placed by the test
+    // so that the engines' own random streams don't matter
+    private static final MoveDirection[] DIRECTIONS = MoveDirection.values();
+    private static final int STEPS = 20_000;
+
+    @Test
+    void enginesAgreeOnRandomGames() {
+        SplittableRandom random = new SplittableRandom(3);
+        for (int size = 3; size <= Packed2048.MAX_SIZE; size++) {
+            // The second Packed2048 has a listener, which keeps it on the per-tile kernels
+            Packed2048 listened = new Packed2048(size, 0L);
+            listened.setStayListener((line, index, direction) -> {});
+            Game2048[] games = size == Bitboard2048.SIZE ?
+                    new Game2048[]{new Simple2048(size, 0L), new Packed2048(size, 0L), listened, new Bitboard2048(0L)} :
+                    new Game2048[]{new Simple2048(size, 0L), new Packed2048(size, 0L), listened};
+            LongArrayList expectedMerges = new LongArrayList();
+            LongArrayList merges = new LongArrayList();
+            fill(games, random);
+            for (int step = 0; step < STEPS; step++) {
+                if (step % 256 == 0 || games[0].legalMoves() == 0)
+                    fill(games, random);
+                for (Game2048 game : games)
+                    assertEquals(games[0].legalMoves(), game.legalMoves(), () -> describe(game));
+                MoveDirection direction = DIRECTIONS[random.nextInt(4)];
+                expectedMerges.clear();
+                boolean moved = slide(games[0], direction, expectedMerges);
+                for (int i = 1; i < games.length; i++) {
+                    Game2048 game = games[i];
+                    merges.clear();
+                    assertEquals(moved, slide(game, direction, merges), () -> describe(game) + " " + direction);
+                    assertEquals(expectedMerges, merges, () -> describe(game) + " " + direction);
+                    assertSameBoard(games[0], game);
+                }
+                if (moved)
+                    spawn(games, random);
+            }
+        }
+    }
+
+    @Test
+    void bitboardStaticsMatchTheGame() {
+        SplittableRandom random = new SplittableRandom(4);
+        Bitboard2048 game = new Bitboard2048(0L);
+        for (int step = 0; step < STEPS; step++) {
+            fill(new Game2048[]{game}, random);
+            long board = game.getBoard();
+            assertEquals(game.legalMoves(), Bitboard2048.legalMoves(board));
+            assertEquals(board, Bitboard2048.transpose(Bitboard2048.transpose(board)));
+            MoveDirection direction = DIRECTIONS[random.nextInt(4)];
+            game.internalMove(direction, null);
+            assertEquals(game.getBoard(), Bitboard2048.move(board, direction), () -> Long.toHexString(board));
+        }
+    }
+
+    @Test
+    void copiesOfSeededGamesPlayAlike() {
+        // A copy derives its random from the game's seed, so the same seed and calls give the same spawns,
+        // and copying leaves the original's own spawns as they were without copies
+        for (int size = 3; size <= Packed2048.MAX_SIZE; size++) {
+            Game2048[] first = {new Simple2048(size, 8L), new Packed2048(size, 8L), new Bitboard2048(8L)};
+            Game2048[] second = {new Simple2048(size, 8L), new Packed2048(size, 8L), new Bitboard2048(8L)};
+            Game2048[] uncopied = {new Simple2048(size, 8L), new Packed2048(size, 8L), new Bitboard2048(8L)};
+            for (int i = 0; i < first.length; i++) {
+                if (first[i].size() != size)
+                    continue;
+                Game2048 a = first[i].copy();
+                Game2048 b = second[i].copy();
+                for (int step = 0; step < 200 && a.checkContinue(); step++) {
+                    a.doMove(DIRECTIONS[step & 3]);
+                    b.doMove(DIRECTIONS[step & 3]);
+                    assertSameBoard(a, b);
+                }
+                for (int step = 0; step < 200 && first[i].checkContinue(); step++) {
+                    first[i].copy();
+                    first[i].doMove(DIRECTIONS[step & 3]);
+                    uncopied[i].doMove(DIRECTIONS[step & 3]);
+                    assertSameBoard(uncopied[i], first[i]);
+                }
+            }
+        }
+    }
+
+    private static boolean slide(Game2048 game, MoveDirection direction, LongArrayList merges) {
+        // The move without the engine's spawn
+        if (game instanceof Simple2048 simple)
+            return simple.internalMove(direction, merges);
+        if (game instanceof Packed2048 packed)
+            return packed.internalMove(direction, merges);
+        return ((Bitboard2048) game).internalMove(direction, merges);
+    }
+
+    private static void fill(Game2048[] games, SplittableRandom random) {
+        // Tiles up to 2^11 with a random density, so that boards range from sparse to locked
+        int size = games[0].size();
+        double density = random.nextDouble();
+        for (int row = 0; row < size; row++)
+            for (int column = 0; column < size; column++) {
+                long value = random.nextDouble() < density ? 1L << (1 + random.nextInt(11)) : 0;
+                for (Game2048 game : games)
+                    game.set(row, column, value);
+            }
+        for (Game2048 game : games) {
+            game.setScore(0);
+            game.validate();
+        }
+    }
+
+    private static void spawn(Game2048[] games, SplittableRandom random) {
+        int size = games[0].size();
+        int at = random.nextInt(games[0].getSpareCount());
+        long value = random.nextInt(10) == 0 ? 4 : 2;
+        for (int cell = 0; cell < size * size; cell++)
+            if (games[0].get(cell / size, cell % size) == 0 && at-- == 0) {
+                for (Game2048 game : games)
+                    game.set(cell / size, cell % size, value);
+                return;
+            }
+    }
+
+    private static void assertSameBoard(Game2048 expected, Game2048 actual) {
+        int size = expected.size();
+        for (int row = 0; row < size; row++)
+            for (int column = 0; column < size; column++)
+                assertEquals(expected.get(row, column), actual.get(row, column), describe(actual));
+        assertEquals(expected.getScore(), actual.getScore(), describe(actual));
+        assertEquals(expected.getSpareCount(), actual.getSpareCount(), describe(actual));
+    }
+
+    private static String describe(Game2048 game) {
+        return game.getClass().getSimpleName() + " " + game.size() + "x" + game.size();
+    }
+}
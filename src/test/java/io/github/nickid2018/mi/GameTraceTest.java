@@ -0,0 +1,73 @@
+package io.github.nickid2018.mi;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GameTraceTest {
+
+    private static final MoveDirection[] DIRECTIONS = MoveDirection.values();
+
+    @Test
+    void readerRebuildsRecordedGames(@TempDir Path directory) throws IOException {
+        // Games of varied length, so that blocks end both full and padded
+        Path path = directory.resolve("games.trace");
+        LongArrayList boards = new LongArrayList();
+        LongArrayList scores = new LongArrayList();
+        LongArrayList moves = new LongArrayList();
+        try (GameTraceRecorder recorder = new GameTraceRecorder(path)) {
+            for (long seed = 0; seed < 20; seed++) {
+                Bitboard2048 game = new Bitboard2048(seed);
+                recorder.startGame(seed, game);
+                for (int step = 0; game.checkContinue() && step < 50 + seed * 20; step++) {
+                    long board = game.getBoard();
+                    long score = game.getScore();
+                    MoveDirection direction = DIRECTIONS[(int) ((seed + step * 7) % 4)];
+                    if (!game.doMove(direction))
+                        continue;
+                    boards.add(board);
+                    scores.add(score);
+                    moves.add(direction.ordinal());
+                }
+            }
+        }
+        try (GameTraceReader reader = new GameTraceReader(path)) {
+            assertEquals(0, reader.slotCount() % GameTraceRecorder.STEPS_PER_BLOCK);
+            int[] step = {0};
+            reader.scan(0, reader.slotCount(), (slot, board, move, score) -> {
+                int i = step[0]++;
+                assertEquals(boards.getLong(i), board, "Board of step " + i);
+                assertEquals(scores.getLong(i), score, "Score of step " + i);
+                assertEquals(moves.getLong(i), move.ordinal(), "Move of step " + i);
+                assertEquals(board, reader.board(slot));
+                assertEquals(score, reader.score(slot));
+            });
+            assertEquals(boards.size(), step[0]);
+        }
+    }
+
+    @Test
+    void stepsMatchTheMoveRecord() {
+        // The recorder's step hook must report what the full record holds, on every engine
+        for (Game2048 game : new Game2048[]{new Simple2048(4, 1L), new Packed2048(4, 1L), new Bitboard2048(1L)}) {
+            MoveRecord[] recorded = new MoveRecord[1];
+            int[] steps = {0};
+            game.setMoveRecordListener(record -> recorded[0] = record);
+            game.setStepListener((direction, spawnSlot, spawnValue) -> {
+                assertEquals(recorded[0].getDirection(), direction);
+                assertEquals(recorded[0].getSpawnSlot(), spawnSlot);
+                assertEquals(recorded[0].getSpawnValue(), spawnValue);
+                steps[0]++;
+            });
+            for (int i = 0; game.checkContinue(); i++)
+                game.doMove(DIRECTIONS[i & 3]);
+            assertTrue(steps[0] > 0);
+        }
+    }
+}
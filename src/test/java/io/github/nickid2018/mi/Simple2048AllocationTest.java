@@ -0,0 +1,49 @@
+package io.github.nickid2018.mi;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class Simple2048AllocationTest {
+
+    private static final MoveDirection[] DIRECTIONS = MoveDirection.values();
+    private static final int MOVES = 200_000;
+    private static final int WARM_UP_ROUNDS = 3;
+
+    @Test
+    void movesDoNotAllocate() {
+        // Moves, spawns, legal move checks and resets all work in place once the game exists
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        for (int size = 3; size <= 8; size++) {
+            Simple2048 game = new Simple2048(size, size);
+            // Warm-up rounds settle the JIT, whose tier changes can still allocate a few bytes once;
+            // an allocation in the moves themselves would show in every round, so the best one must be clean
+            for (int round = 0; round < WARM_UP_ROUNDS; round++)
+                allocatedBy(threads, game);
+            long allocated = Long.MAX_VALUE;
+            for (int round = 0; round < 3; round++)
+                allocated = Math.min(allocated, allocatedBy(threads, game));
+            assertEquals(0, allocated, "Bytes allocated by " + MOVES + " moves on " + size + "x" + size);
+        }
+    }
+
+    private static long allocatedBy(com.sun.management.ThreadMXBean threads, Simple2048 game) {
+        long before = threads.getCurrentThreadAllocatedBytes();
+        play(game, MOVES);
+        return threads.getCurrentThreadAllocatedBytes() - before;
+    }
+
+    private static void play(Simple2048 game, int moves) {
+        for (int i = 0; i < moves; i++) {
+            if (!game.checkContinue())
+                game.reset();
+            game.doMove(DIRECTIONS[i & 3]);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package io.github.nickid2018.mi;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class Simple2048TablebaseTest {
+
+    // Tiles up to 8 keep the table at 4^9 boards
+    private static final int MAX_EXPONENT = 3;
+
+    @TempDir
+    static Path directory;
+    private static Simple2048Tablebase tablebase;
+
+    @BeforeAll
+    static void generate() throws IOException {
+        tablebase = Simple2048Tablebase.generate(directory.resolve("3x3.tb"), MAX_EXPONENT, ForkJoinPool.commonPool());
+    }
+
+    @AfterAll
+    static void close() throws IOException {
+        tablebase.close();
+    }
+
+    @Test
+    void indexIsABijection() {
+        Simple2048 game = new Simple2048(Simple2048Tablebase.SIZE, 0L);
+        assertEquals(1L << (2 * Simple2048Tablebase.CELLS), tablebase.size());
+        for (long index = 0; index < tablebase.size(); index++) {
+            set(game, index);
+            assertEquals(index, tablebase.index(game));
+        }
+        game.set(0, 0, 1L << (MAX_EXPONENT + 1));
+        assertThrows(IllegalArgumentException.class, () -> tablebase.index(game));
+    }
+
+    @Test
+    void valuesFollowTheBestMove() {
+        // A board is worth its best move, symmetric boards are worth the same
+        SplittableRandom random = new SplittableRandom(9);
+        Simple2048 game = new Simple2048(Simple2048Tablebase.SIZE, 0L);
+        for (int i = 0; i < 20_000; i++) {
+            set(game, random.nextLong(tablebase.size()));
+            float value = tablebase.value(game);
+            MoveDirection best = tablebase.bestMove(game);
+            float max = Float.NEGATIVE_INFINITY;
+            for (MoveDirection direction : MoveDirection.values()) {
+                float moveValue = tablebase.value(game, direction);
+                // Merges past MAX_EXPONENT count as illegal too
+                assertTrue((game.legalMoves() & direction.mask()) != 0 || moveValue == Float.NEGATIVE_INFINITY,
+                        "Illegal move with a value");
+                max = Math.max(max, moveValue);
+            }
+            if (best == null) {
+                assertEquals(Float.NEGATIVE_INFINITY, max);
+                assertEquals(0, value);
+            } else {
+                assertEquals(max, value, Math.abs(max) * 1e-5f);
+                assertEquals(value, tablebase.value(game, best), Math.abs(value) * 1e-5f);
+            }
+            for (Symmetry symmetry : Symmetry.values()) {
+                Simple2048 transformed = game.copy();
+                transformed.transform(symmetry);
+                assertEquals(value, tablebase.value(transformed), Math.abs(value) * 1e-5f);
+            }
+        }
+    }
+
+    @Test
+    void reopenedTableMatches() throws IOException {
+        SplittableRandom random = new SplittableRandom(10);
+        try (Simple2048Tablebase opened = Simple2048Tablebase.open(directory.resolve("3x3.tb"))) {
+            assertEquals(MAX_EXPONENT, opened.getMaxExponent());
+            for (int i = 0; i < 10_000; i++) {
+                long index = random.nextLong(tablebase.size());
+                assertEquals(tablebase.value(index), opened.value(index));
+            }
+        }
+    }
+
+    private static void set(Simple2048 game, long index) {
+        // Exponents as the digits of the index, cell 0 lowest
+        for (int cell = 0; cell < Simple2048Tablebase.CELLS; cell++) {
+            int exponent = (int) (index % (MAX_EXPONENT + 1));
+            index /= MAX_EXPONENT + 1;
+            game.set(cell / Simple2048Tablebase.SIZE, cell % Simple2048Tablebase.SIZE, exponent == 0 ? 0 : 1L << exponent);
+        }
+        game.validate();
+    }
+}
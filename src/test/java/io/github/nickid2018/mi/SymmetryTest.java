@@ -0,0 +1,120 @@
+package io.github.nickid2018.mi;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SymmetryTest {
+
+    private static final Symmetry[] SYMMETRIES = Symmetry.values();
+    private static final MoveDirection[] DIRECTIONS = MoveDirection.values();
+
+    @Test
+    void cellsArePermutedAndInverted() {
+        for (int size = 3; size <= Packed2048.MAX_SIZE; size++)
+            for (Symmetry symmetry : SYMMETRIES) {
+                boolean[] seen = new boolean[size * size];
+                for (int row = 0; row < size; row++)
+                    for (int column = 0; column < size; column++) {
+                        int slot = symmetry.apply(size, row, column);
+                        assertFalse(seen[slot], symmetry + " " + size);
+                        seen[slot] = true;
+                        assertEquals(row * size + column, symmetry.inverse().apply(size, slot / size, slot % size));
+                    }
+                for (MoveDirection direction : DIRECTIONS)
+                    assertEquals(direction, symmetry.inverse().apply(symmetry.apply(direction)));
+            }
+    }
+
+    @Test
+    void gamesTransformLikeTheCells() {
+        SplittableRandom random = new SplittableRandom(5);
+        for (int size = 3; size <= Packed2048.MAX_SIZE; size++)
+            for (Symmetry symmetry : SYMMETRIES) {
+                Game2048[] games = size == Bitboard2048.SIZE ?
+                        new Game2048[]{new Simple2048(size, 0L), new Packed2048(size, 0L), new Bitboard2048(0L)} :
+                        new Game2048[]{new Simple2048(size, 0L), new Packed2048(size, 0L)};
+                long[] cells = new long[size * size];
+                int spare = 0;
+                for (int i = 0; i < cells.length; i++)
+                    if (random.nextBoolean())
+                        cells[i] = 1L << (1 + random.nextInt(11));
+                    else
+                        spare++;
+                for (Game2048 game : games) {
+                    for (int i = 0; i < cells.length; i++)
+                        game.set(i / size, i % size, cells[i]);
+                    game.validate();
+                    game.transform(symmetry);
+                    for (int row = 0; row < size; row++)
+                        for (int column = 0; column < size; column++) {
+                            int slot = symmetry.apply(size, row, column);
+                            assertEquals(cells[row * size + column], game.get(slot / size, slot % size),
+                                    game.getClass().getSimpleName() + " " + size + " " + symmetry);
+                        }
+                    assertEquals(spare, game.getSpareCount(), game.getClass().getSimpleName() + " " + size);
+                }
+            }
+    }
+
+    @Test
+    void movesCommuteWithSymmetries() {
+        SplittableRandom random = new SplittableRandom(6);
+        for (int i = 0; i < 10_000; i++) {
+            long board = randomBoard(random);
+            for (Symmetry symmetry : SYMMETRIES) {
+                long transformed = Bitboard2048.transform(board, symmetry);
+                for (MoveDirection direction : DIRECTIONS)
+                    assertEquals(Bitboard2048.transform(Bitboard2048.move(board, direction), symmetry),
+                            Bitboard2048.move(transformed, symmetry.apply(direction)),
+                            () -> Long.toHexString(board) + " " + symmetry + " " + direction);
+                assertEquals(board, Bitboard2048.transform(transformed, symmetry.inverse()));
+            }
+        }
+        // The same on larger boards, through the games
+        for (int size = 3; size <= Packed2048.MAX_SIZE; size++)
+            for (int i = 0; i < 200; i++)
+                for (Symmetry symmetry : SYMMETRIES) {
+                    MoveDirection direction = DIRECTIONS[random.nextInt(4)];
+                    Simple2048 moved = new Simple2048(size, 0L);
+                    for (int row = 0; row < size; row++)
+                        for (int column = 0; column < size; column++)
+                            moved.set(row, column, random.nextBoolean() ? 1L << (1 + random.nextInt(4)) : 0);
+                    moved.validate();
+                    Simple2048 transformed = moved.copy();
+                    transformed.transform(symmetry);
+                    moved.internalMove(direction, null);
+                    moved.transform(symmetry);
+                    transformed.internalMove(symmetry.apply(direction), null);
+                    for (int row = 0; row < size; row++)
+                        for (int column = 0; column < size; column++)
+                            assertEquals(moved.get(row, column), transformed.get(row, column), size + " " + symmetry);
+                }
+    }
+
+    @Test
+    void canonicalSymmetryReachesTheCanonicalBoard() {
+        SplittableRandom random = new SplittableRandom(7);
+        for (int i = 0; i < 10_000; i++) {
+            long board = randomBoard(random);
+            long canonical = Bitboard2048.canonical(board);
+            assertEquals(canonical, Bitboard2048.transform(board, Bitboard2048.canonicalSymmetry(board)));
+            for (Symmetry symmetry : SYMMETRIES) {
+                long transformed = Bitboard2048.transform(board, symmetry);
+                assertEquals(canonical, Bitboard2048.canonical(transformed));
+                assertTrue(Long.compareUnsigned(canonical, transformed) <= 0);
+            }
+        }
+    }
+
+    private static long randomBoard(SplittableRandom random) {
+        // Few distinct exponents so that merges are common
+        long board = 0;
+        for (int cell = 0; cell < 16; cell++)
+            if (random.nextBoolean())
+                board |= (long) (1 + random.nextInt(3)) << (cell * 4);
+        return board;
+    }
+}